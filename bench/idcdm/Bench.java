@@ -0,0 +1,32 @@
+package idcdm;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Helpers of the benchmarks in this folder, which run on JMH: java -jar target/benchmarks.jar after
+ * mvn -P bench package.
+ */
+class Bench {
+    // held here, a logger nobody references may be collected with its level
+    private static final Logger ENGINE_LOGGER = Logger.getLogger("IdcDm");
+
+    /**
+     * Silence the loggers of the engine while the code under test runs.
+     */
+    static void quiet() {
+        ENGINE_LOGGER.setLevel(Level.OFF);
+    }
+
+    /**
+     * Parse "--name=value" from args, or return the default.
+     */
+    static String option(String[] args, String name, String defaultValue) {
+        for (String arg : args) {
+            if (arg.startsWith("--" + name + "=")) {
+                return arg.substring(name.length() + 3);
+            }
+        }
+        return defaultValue;
+    }
+}
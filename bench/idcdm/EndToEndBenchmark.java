@@ -0,0 +1,153 @@
+package idcdm;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End to end benchmarks: whole downloads from a local RangeServer, through the HTTPRangeGetters, the write path and
+ * the metadata, into the working directory. Every scenario sets up the server (latency, bandwidth, faults) and the
+ * DownloadConfig (with the same options as the command line), and reports the time of a download of size bytes.
+ * Every download is checked against the payload outside of the measured time, a benchmark of a broken download is
+ * worthless.
+ *
+ * usage: java -jar target/benchmarks.jar EndToEndBenchmark [-p scenario=MMAP_4] [-p size=1G] [JMH options]
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+public class EndToEndBenchmark {
+    public enum Scenario {
+        CHANNEL_4(0, 0, 0, "--connections=4"),
+        CHANNEL_16(0, 0, 0, "--connections=16"),
+        CHANNEL_4_TWO_WRITERS(0, 0, 0, "--connections=4", "--writers=2"),
+        MMAP_4(0, 0, 0, "--connections=4", "--mmap"),
+        MMAP_16(0, 0, 0, "--connections=16", "--mmap"),
+        DIGEST_4(0, 0, 0, "--connections=4", "--digest"),
+        PLATFORM_THREADS_64(0, 0, 0, "--connections=64"),
+        VIRTUAL_THREADS_64(0, 0, 0, "--connections=64", "--virtual-threads"),
+        RATE_LIMITED_64M_4(0, 0, 0, "--connections=4", "--rate=64M"),
+        // a far server whose connections are throttled, where the number of connections matters
+        THROTTLED_16M_4(20, 16 * 1024 * 1024, 0, "--connections=4"),
+        THROTTLED_16M_AUTO(20, 16 * 1024 * 1024, 0, "--connections=auto"),
+        // as many failures as errors
+        FAULTS_10_PERCENT_8(0, 0, 0.05, "--connections=8");
+
+        final long latencyMillis;
+        final long bytesPerSecond;
+        final double faultRate;
+        // "--digest" stands for the digest of the payload
+        final String[] options;
+
+        Scenario(long latencyMillis, long bytesPerSecond, double faultRate, String... options) {
+            this.latencyMillis = latencyMillis;
+            this.bytesPerSecond = bytesPerSecond;
+            this.faultRate = faultRate;
+            this.options = options;
+        }
+    }
+
+    @Param
+    public Scenario scenario;
+    @Param({"256M"})
+    public String size;
+
+    private RangeServer server;
+    private String baseUrl;
+    private int downloads;
+    private String filename;
+
+    @Setup(Level.Trial)
+    public void startServer() throws IOException {
+        // the engine sizes the JDK keep-alive cache once per JVM, leave room for the largest scenario
+        System.setProperty("http.maxConnections", "64");
+        Bench.quiet();
+        server = new RangeServer((int) DownloadConfig.parseSize(size), 1);
+        server.latencyMillis = scenario.latencyMillis;
+        server.bytesPerSecond = scenario.bytesPerSecond;
+        server.failureRate = scenario.faultRate;
+        server.errorRate = scenario.faultRate;
+        baseUrl = "http://localhost:" + server.start(0) + "/";
+    }
+
+    @TearDown(Level.Trial)
+    public void stopServer() {
+        server.stop();
+    }
+
+    @Setup(Level.Invocation)
+    public void nextFile() {
+        // a new name every time, so the JDK cannot serve anything from a previous download
+        filename = "e2e-" + (++downloads) + ".bin";
+    }
+
+    @Benchmark
+    public void download() {
+        DownloadConfig config = new DownloadConfig();
+        for (String option : scenario.options) {
+            if (option.equals("--digest")) {
+                option = "--digest=" + server.getDigest();
+            }
+            if (!config.parseOption(option)) {
+                throw new IllegalArgumentException("unknown option: " + option);
+            }
+        }
+        DownloadEngine engine = new DownloadEngine(config);
+        try {
+            if (!engine.download(baseUrl + filename)) {
+                throw new IllegalStateException("download of " + filename + " failed");
+            }
+        } finally {
+            engine.shutdown();
+        }
+    }
+
+    @TearDown(Level.Invocation)
+    public void checkFile() throws IOException {
+        try {
+            check(filename);
+        } finally {
+            new File(filename).delete();
+            new File(filename + ".metadata").delete();
+            new File(filename + ".metadata.journal").delete();
+        }
+    }
+
+    private void check(String filename) throws IOException {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("sha-256");
+            byte[] buffer = new byte[1024 * 1024];
+            try (InputStream in = new FileInputStream(filename)) {
+                int read;
+                while ((read = in.read(buffer)) > 0) {
+                    digest.update(buffer, 0, read);
+                }
+            }
+            if (!server.getDigest().equals("sha-256:" + Hasher.toHex(digest.digest()))) {
+                throw new IllegalStateException(filename + " does not match the payload");
+            }
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,290 @@
+package idcdm;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Micro benchmarks of the hot paths of a download, each in isolation:
+ * - TokenBucket.take, alone, contended by several connections, under a parent, and unlimited
+ * - DownloadableMetadata.addRange and getMissingRange(s) on a 1 TB file fragmented into a million ranges
+ * - Chunk allocation: a new buffer per chunk against the ChunkPool
+ * - the write path: FileWriter(s) through the WriteStage against the MappedOutput, in ms per file of size bytes
+ *
+ * usage: java -jar target/benchmarks.jar MicroBenchmarks [-p size=1G] [JMH options]
+ * The write benchmarks create and delete their files in the working directory.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MicroBenchmarks {
+    private static final long TERABYTE = 1L << 40;
+    private static final int RANGES = 1 << 20;
+    // every other range is downloaded
+    private static final int GAPS = RANGES / 2;
+    private static final int READ_SIZE = 16 * 1024;
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    @State(Scope.Benchmark)
+    public static class Buckets {
+        // a rate so high the bucket never waits, what is measured is the cost of a take
+        final TokenBucket bucket = new TokenBucket(1L << 50, 1L << 40);
+        // a parent bucket doubles the work of every take
+        final TokenBucket child = new TokenBucket(1L << 50, 1L << 40, bucket);
+        final TokenBucket unlimited = new TokenBucket();
+    }
+
+    @Benchmark
+    public void tokenBucketTake(Buckets buckets) {
+        buckets.bucket.take(READ_SIZE);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void tokenBucketTake4Threads(Buckets buckets) {
+        buckets.bucket.take(READ_SIZE);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public void tokenBucketTake16Threads(Buckets buckets) {
+        buckets.bucket.take(READ_SIZE);
+    }
+
+    @Benchmark
+    public void tokenBucketTakeWithParent(Buckets buckets) {
+        buckets.child.take(READ_SIZE);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public void tokenBucketTakeUnlimited16Threads(Buckets buckets) {
+        buckets.unlimited.take(READ_SIZE);
+    }
+
+    /**
+     * A new metadata for every invocation, filled with a million ranges in random order.
+     */
+    @State(Scope.Thread)
+    public static class EmptyMetadata {
+        final List<Range> shuffled = shuffledRanges();
+        DownloadableMetadata metadata;
+
+        @Setup(Level.Invocation)
+        public void setUp() throws Exception {
+            Bench.quiet();
+            metadata = newMetadata("bench-metadata.bin", TERABYTE);
+        }
+
+        @TearDown(Level.Invocation)
+        public void tearDown() {
+            metadata.delete();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RANGES)
+    @Warmup(iterations = 1)
+    public long metadataAddRange(EmptyMetadata state) {
+        for (Range range : state.shuffled) {
+            state.metadata.addRange(range);
+        }
+        return state.metadata.bytesRead;
+    }
+
+    /**
+     * A metadata with every other range of a million downloaded, so there are half a million gaps.
+     */
+    @State(Scope.Thread)
+    public static class FragmentedMetadata {
+        DownloadableMetadata metadata;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            Bench.quiet();
+            metadata = newMetadata("bench-fragmented.bin", TERABYTE);
+            long rangeSize = TERABYTE / RANGES;
+            for (Range range : shuffledRanges()) {
+                if (range.getStart() / rangeSize % 2 == 0) {
+                    metadata.addRange(range);
+                }
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            metadata.delete();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(GAPS)
+    public long metadataGetMissingRange(FragmentedMetadata state) {
+        state.metadata.lastStart = 0;
+        long found = 0;
+        Range range;
+        while ((range = state.metadata.getMissingRange()) != null) {
+            found += range.getLength();
+        }
+        return found;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(GAPS)
+    public int metadataGetMissingRanges(FragmentedMetadata state) {
+        return state.metadata.getMissingRanges().size();
+    }
+
+    @State(Scope.Thread)
+    public static class Chunks {
+        final ChunkPool pool = new ChunkPool(64, CHUNK_SIZE);
+        long offset;
+    }
+
+    @Benchmark
+    public byte chunkWithNewBuffer(Chunks chunks) {
+        Chunk chunk = new Chunk(ByteBuffer.allocate(CHUNK_SIZE));
+        chunk.reset(chunks.offset++, CHUNK_SIZE);
+        return chunk.getData().get(0);
+    }
+
+    @Benchmark
+    public byte chunkPoolAcquireRelease(Chunks chunks) throws Exception {
+        Chunk chunk = chunks.pool.acquire();
+        chunk.reset(chunks.offset++, CHUNK_SIZE);
+        byte first = chunk.getData().get(0);
+        chunks.pool.release(chunk);
+        return first;
+    }
+
+    /**
+     * A new output file for every invocation, written in 64K chunks by the given number of FileWriters.
+     */
+    @State(Scope.Thread)
+    public static class WritePath {
+        @Param({"256M"})
+        public String size;
+        @Param({"1", "4"})
+        public int writers;
+        long bytes;
+        DownloadableMetadata metadata;
+
+        @Setup(Level.Invocation)
+        public void setUp() throws Exception {
+            Bench.quiet();
+            bytes = DownloadConfig.parseSize(size);
+            metadata = newMetadata("bench-write.bin", bytes);
+        }
+
+        @TearDown(Level.Invocation)
+        public void tearDown() {
+            cleanup(metadata);
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 1)
+    public void writeStage(WritePath state) throws Exception {
+        DownloadConfig config = new DownloadConfig();
+        config.writerThreads = state.writers;
+        ChunkPool pool = new ChunkPool(config.getPoolSize(), CHUNK_SIZE);
+        WriteStage writeStage = new WriteStage(state.metadata, pool, config, new Metrics());
+        writeStage.start();
+        for (long offset = 0; offset < state.bytes; offset += CHUNK_SIZE) {
+            Chunk chunk = pool.acquire();
+            chunk.reset(offset, (int) Math.min(CHUNK_SIZE, state.bytes - offset));
+            writeStage.put(chunk);
+        }
+        writeStage.finish();
+        if (!state.metadata.isCompleted()) {
+            throw new IllegalStateException("the write stage lost chunks");
+        }
+    }
+
+    /**
+     * A new memory-mapped output file for every invocation.
+     */
+    @State(Scope.Thread)
+    public static class MappedPath {
+        @Param({"256M"})
+        public String size;
+        final byte[] buffer = new byte[READ_SIZE];
+        long bytes;
+        DownloadableMetadata metadata;
+
+        @Setup(Level.Invocation)
+        public void setUp() throws Exception {
+            Bench.quiet();
+            bytes = DownloadConfig.parseSize(size);
+            metadata = newMetadata("bench-mmap.bin", bytes);
+        }
+
+        @TearDown(Level.Invocation)
+        public void tearDown() {
+            cleanup(metadata);
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 1)
+    public void mappedOutput(MappedPath state) throws Exception {
+        MappedOutput output = new MappedOutput(state.metadata, state.bytes, new DownloadConfig(), new Metrics());
+        byte[] buffer = state.buffer;
+        for (long offset = 0; offset < state.bytes; offset += CHUNK_SIZE) {
+            int length = (int) Math.min(CHUNK_SIZE, state.bytes - offset);
+            // the getters copy every read, of readSize bytes, into the mapping
+            for (int written = 0; written < length; written += buffer.length) {
+                output.write(offset + written, buffer, Math.min(buffer.length, length - written));
+            }
+            output.complete(offset, offset + length - 1);
+        }
+        output.finish();
+    }
+
+    private static List<Range> shuffledRanges() {
+        long rangeSize = TERABYTE / RANGES;
+        List<Range> shuffled = new ArrayList<>();
+        for (int i = 0; i < RANGES; i++) {
+            shuffled.add(new Range(i * rangeSize, (i + 1) * rangeSize - 1));
+        }
+        Collections.shuffle(shuffled, new Random(1));
+        return shuffled;
+    }
+
+    private static DownloadableMetadata newMetadata(String filename, long fileSize) throws Exception {
+        DownloadableMetadata metadata = new DownloadableMetadata("http://localhost/" + filename, fileSize);
+        // a previous run may have been interrupted
+        metadata.delete();
+        return new DownloadableMetadata("http://localhost/" + filename, fileSize);
+    }
+
+    private static void cleanup(DownloadableMetadata metadata) {
+        metadata.delete();
+        new File(metadata.getFilename()).delete();
+    }
+}
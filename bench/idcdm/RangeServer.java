@@ -0,0 +1,242 @@
+package idcdm;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A local stand-in for a download server, used by the end to end benchmarks.
+ *
+ * Every path serves the same payload, generated from a seed so runs are reproducible, with HEAD, ETag,
+ * Last-Modified (and If-None-Match / If-Modified-Since), single Range requests and (unless disabled)
+ * multipart/byteranges responses. The network can be made worse on purpose, per request:
+ * - latencyMillis: delay before the response headers
+ * - bytesPerSecond: bandwidth of every response, i.e. of every connection (0 for unlimited)
+ * - failureRate: probability that a response is cut in the middle and its connection dropped
+ * - errorRate: probability of a 503 response
+ * - stallRate / stallMillis: probability that a response stops sending for stallMillis in the middle
+ * Faults are drawn from a Random seeded with the same seed, so a run injects the same faults in the same order.
+ *
+ * It can also run on its own: java idcdm.RangeServer [--port=N] [--size=SIZE] [--latency=MILLIS] [--bandwidth=RATE]
+ * [--failure-rate=P] [--error-rate=P] [--stall-rate=P] [--stall=MILLIS] [--seed=N] [--etag=TAG]
+ * [--no-multi-range]
+ */
+class RangeServer implements HttpHandler {
+    private static final int WRITE_SIZE = 64 * 1024;
+    private static final String LAST_MODIFIED = "Wed, 21 Oct 2015 07:28:00 GMT";
+    private static final String BOUNDARY = "BENCH_BOUNDARY";
+
+    private final byte[] payload;
+    // a new value makes resumed downloads see a changed file
+    String etag = "\"bench\"";
+    private final Random faults;
+    long latencyMillis = 0;
+    long bytesPerSecond = 0;
+    double failureRate = 0;
+    double errorRate = 0;
+    double stallRate = 0;
+    long stallMillis = 2000;
+    boolean multiRange = true;
+    final AtomicLong requests = new AtomicLong();
+    final AtomicLong bytesServed = new AtomicLong();
+    private HttpServer server;
+    private ExecutorService executor;
+
+    RangeServer(int size, long seed) {
+        this.payload = new byte[size];
+        new Random(seed).nextBytes(payload);
+        this.faults = new Random(seed);
+    }
+
+    /**
+     * Start serving on port, 0 for any free port.
+     *
+     * @return the port
+     */
+    int start(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", port), 1024);
+        executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        server.createContext("/", this);
+        server.start();
+        return server.getAddress().getPort();
+    }
+
+    void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    byte[] getPayload() {
+        return payload;
+    }
+
+    /**
+     * @return the sha-256 of the payload as ALGORITHM:HEX, to check a download with --digest
+     */
+    String getDigest() {
+        try {
+            return "sha-256:" + Hasher.toHex(MessageDigest.getInstance("sha-256").digest(payload));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private synchronized boolean draw(double probability) {
+        return probability > 0 && faults.nextDouble() < probability;
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        exchange.getResponseHeaders().set("ETag", etag);
+        exchange.getResponseHeaders().set("Last-Modified", LAST_MODIFIED);
+        exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+        sleep(latencyMillis);
+        String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+        String ifModifiedSince = exchange.getRequestHeaders().getFirst("If-Modified-Since");
+        if (ifNoneMatch != null ? ifNoneMatch.equals(etag) : LAST_MODIFIED.equals(ifModifiedSince)) {
+            exchange.sendResponseHeaders(304, -1);
+            exchange.close();
+            return;
+        }
+        if (exchange.getRequestMethod().equals("HEAD")) {
+            exchange.getResponseHeaders().set("Content-Length", String.valueOf(payload.length));
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+            return;
+        }
+        String rangeHeader = exchange.getRequestHeaders().getFirst("Range");
+        if (rangeHeader != null && draw(errorRate)) {
+            exchange.sendResponseHeaders(503, -1);
+            exchange.close();
+            return;
+        }
+        List<long[]> ranges = parseRanges(rangeHeader);
+        if (ranges.size() > 1 && multiRange) {
+            sendMultipart(exchange, ranges);
+            return;
+        }
+        long start = 0;
+        long end = payload.length - 1;
+        int code = 200;
+        if (!ranges.isEmpty()) {
+            start = ranges.get(0)[0];
+            end = Math.min(ranges.get(0)[1], payload.length - 1);
+            code = 206;
+            exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + end + "/" + payload.length);
+        }
+        exchange.sendResponseHeaders(code, end - start + 1);
+        try (OutputStream out = exchange.getResponseBody()) {
+            send(out, (int) start, (int) (end - start + 1), rangeHeader != null);
+        }
+    }
+
+    private void sendMultipart(HttpExchange exchange, List<long[]> ranges) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        for (long[] range : ranges) {
+            long end = Math.min(range[1], payload.length - 1);
+            body.write(("\r\n--" + BOUNDARY + "\r\nContent-Type: application/octet-stream\r\nContent-Range: bytes "
+                    + range[0] + "-" + end + "/" + payload.length + "\r\n\r\n").getBytes("US-ASCII"));
+            body.write(payload, (int) range[0], (int) (end - range[0] + 1));
+        }
+        body.write(("\r\n--" + BOUNDARY + "--\r\n").getBytes("US-ASCII"));
+        exchange.getResponseHeaders().set("Content-Type", "multipart/byteranges; boundary=" + BOUNDARY);
+        exchange.sendResponseHeaders(206, body.size());
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body.toByteArray());
+        }
+        bytesServed.addAndGet(body.size());
+    }
+
+    /**
+     * Write length bytes of the payload at the configured bandwidth, injecting failures and stalls.
+     */
+    private void send(OutputStream out, int offset, int length, boolean faulty) throws IOException {
+        int failAt = faulty && draw(failureRate) ? length / 2 : -1;
+        int stallAt = faulty && draw(stallRate) ? length / 2 : -1;
+        long start = System.nanoTime();
+        int sent = 0;
+        while (sent < length) {
+            int size = Math.min(WRITE_SIZE, length - sent);
+            if (failAt >= 0 && sent + size > failAt) {
+                out.write(payload, offset + sent, failAt - sent);
+                out.flush();
+                // the server closes the connection of a handler which throws
+                throw new IOException("injected failure");
+            }
+            if (stallAt >= 0 && sent >= stallAt) {
+                stallAt = -1;
+                sleep(stallMillis);
+            }
+            out.write(payload, offset + sent, size);
+            sent += size;
+            bytesServed.addAndGet(size);
+            if (bytesPerSecond > 0) {
+                long due = start + sent * 1000000000L / bytesPerSecond;
+                sleep((due - System.nanoTime()) / 1000000);
+            }
+        }
+    }
+
+    /**
+     * Parse "bytes=A-B,C-D,E-" into inclusive {start, end} pairs, empty if there is no header.
+     */
+    private List<long[]> parseRanges(String header) {
+        List<long[]> ranges = new ArrayList<>();
+        if (header == null || !header.startsWith("bytes=")) {
+            return ranges;
+        }
+        for (String part : header.substring("bytes=".length()).split(",")) {
+            String[] startEnd = part.trim().split("-", -1);
+            long start = Long.parseLong(startEnd[0]);
+            long end = startEnd[1].isEmpty() ? payload.length - 1 : Long.parseLong(startEnd[1]);
+            ranges.add(new long[]{start, end});
+        }
+        return ranges;
+    }
+
+    private static void sleep(long millis) {
+        if (millis <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        RangeServer server = new RangeServer((int) DownloadConfig.parseSize(Bench.option(args, "size", "256M")),
+                Long.parseLong(Bench.option(args, "seed", "1")));
+        server.latencyMillis = Long.parseLong(Bench.option(args, "latency", "0"));
+        server.bytesPerSecond = DownloadConfig.parseSize(Bench.option(args, "bandwidth", "0"));
+        server.failureRate = Double.parseDouble(Bench.option(args, "failure-rate", "0"));
+        server.errorRate = Double.parseDouble(Bench.option(args, "error-rate", "0"));
+        server.stallRate = Double.parseDouble(Bench.option(args, "stall-rate", "0"));
+        server.stallMillis = Long.parseLong(Bench.option(args, "stall", "2000"));
+        server.etag = "\"" + Bench.option(args, "etag", "bench") + "\"";
+        for (String arg : args) {
+            if (arg.equals("--no-multi-range")) {
+                server.multiRange = false;
+            }
+        }
+        int port = server.start(Integer.parseInt(Bench.option(args, "port", "8080")));
+        System.out.println("serving " + server.payload.length + " bytes on http://localhost:" + port + "/, "
+                + server.getDigest());
+    }
+}
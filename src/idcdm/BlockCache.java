@@ -0,0 +1,149 @@
+package idcdm;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A local cache of verified blocks, one file per block named by its hash ("sha-256-9f86d0..."), bounded to
+ * maxBytes with least recently used eviction.
+ *
+ * Blocks go in after the IntegrityVerifier verified them, and come out when a later download's manifest lists a
+ * block with the same hash, wherever it is in the file. Blocks are copied between files with transferTo/From, so
+ * they do not go through the heap. The LRU order survives restarts through the files' modification times.
+ */
+class BlockCache {
+    private final File directory;
+    private final long maxBytes;
+    // key -> size, in access order
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes;
+
+    BlockCache(String directory, long maxBytes) throws IOException {
+        this.directory = new File(directory);
+        this.maxBytes = maxBytes;
+        if (!this.directory.isDirectory() && !this.directory.mkdirs()) {
+            throw new IOException("cannot create the cache directory " + directory);
+        }
+        File[] files = this.directory.listFiles();
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+        for (File file : files) {
+            if (file.getName().endsWith(".tmp")) {
+                // left by a crash in put()
+                file.delete();
+            } else {
+                entries.put(file.getName(), file.length());
+                totalBytes += file.length();
+            }
+        }
+        evict();
+    }
+
+    static String getKey(String algorithm, byte[] digest) {
+        return algorithm.toLowerCase() + "-" + Hasher.toHex(digest);
+    }
+
+    /**
+     * Copy the block of key to target at position.
+     *
+     * @return false if the cache has no block of length bytes for key
+     */
+    boolean copyTo(String key, FileChannel target, long position, long length) {
+        File file;
+        synchronized (this) {
+            Long size = entries.get(key);
+            if (size == null || size != length) {
+                return false;
+            }
+            file = new File(directory, key);
+            file.setLastModified(System.currentTimeMillis());
+        }
+        try (FileChannel source = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long copied = 0;
+            while (copied < length) {
+                long transferred = target.transferFrom(source, position + copied, length - copied);
+                if (transferred <= 0) {
+                    // the entry was evicted or truncated under us
+                    return false;
+                }
+                copied += transferred;
+            }
+        } catch (IOException e) {
+            remove(key);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Store length bytes of source at position as the block of key, unless the cache already has it.
+     */
+    void put(String key, FileChannel source, long position, long length) throws IOException {
+        if (length > maxBytes) {
+            return;
+        }
+        synchronized (this) {
+            if (entries.get(key) != null) {
+                return;
+            }
+        }
+        // write to a temporary file first, a crash must not leave a short block under a valid name
+        File tmpFile = new File(directory, key + "." + Thread.currentThread().getId() + ".tmp");
+        try (FileChannel target = FileChannel.open(tmpFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long copied = 0;
+            while (copied < length) {
+                long transferred = source.transferTo(position + copied, length - copied, target);
+                if (transferred <= 0) {
+                    throw new IOException("unexpected end of file at " + (position + copied));
+                }
+                copied += transferred;
+            }
+        } catch (IOException e) {
+            tmpFile.delete();
+            throw e;
+        }
+        synchronized (this) {
+            if (entries.get(key) != null || !tmpFile.renameTo(new File(directory, key))) {
+                tmpFile.delete();
+                return;
+            }
+            entries.put(key, length);
+            totalBytes += length;
+            evict();
+        }
+    }
+
+    synchronized void remove(String key) {
+        Long size = entries.remove(key);
+        if (size != null) {
+            totalBytes -= size;
+            new File(directory, key).delete();
+        }
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, Long>> eldest = entries.entrySet().iterator();
+        while (totalBytes > maxBytes && eldest.hasNext()) {
+            Map.Entry<String, Long> entry = eldest.next();
+            new File(directory, entry.getKey()).delete();
+            totalBytes -= entry.getValue();
+            eldest.remove();
+        }
+    }
+
+    synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+}
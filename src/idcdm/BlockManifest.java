@@ -0,0 +1,95 @@
+package idcdm;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Expected hashes of a file, read from a text manifest:
+ *
+ *   # comments and blank lines are ignored
+ *   algorithm sha-256
+ *   block-size 4194304
+ *   file 9f86d081...          (optional, hash of the whole file)
+ *   2c26b46b...               (one line per block, in order; the last block may be short)
+ *
+ * Without block lines only the whole file is verified.
+ */
+class BlockManifest {
+    final String algorithm;
+    final long blockSize;
+    private final List<byte[]> blockDigests;
+    final String fileAlgorithm;
+    final byte[] fileDigest;
+
+    BlockManifest(String algorithm, long blockSize, List<byte[]> blockDigests, String fileAlgorithm,
+                  byte[] fileDigest) {
+        this.algorithm = algorithm;
+        this.blockSize = blockSize;
+        this.blockDigests = blockDigests;
+        this.fileAlgorithm = fileAlgorithm;
+        this.fileDigest = fileDigest;
+    }
+
+    static BlockManifest load(String filename) throws IOException {
+        String algorithm = "sha-256";
+        long blockSize = 0;
+        byte[] fileDigest = null;
+        List<byte[]> blockDigests = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(filename))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split("\\s+");
+                try {
+                    if (fields[0].equals("algorithm")) {
+                        algorithm = fields[1];
+                    } else if (fields[0].equals("block-size")) {
+                        blockSize = DownloadConfig.parseSize(fields[1]);
+                    } else if (fields[0].equals("file")) {
+                        fileDigest = Hasher.parseHex(fields[1]);
+                    } else {
+                        blockDigests.add(Hasher.parseHex(fields[0]));
+                    }
+                } catch (RuntimeException e) {
+                    throw new IOException("malformed manifest line: " + line);
+                }
+            }
+        }
+        if (!blockDigests.isEmpty() && blockSize <= 0) {
+            throw new IOException("manifest has block hashes but no block-size");
+        }
+        return new BlockManifest(algorithm, blockSize, blockDigests, algorithm, fileDigest);
+    }
+
+    /**
+     * Return this manifest with the expected hash of the whole file replaced by digest, given as "ALGORITHM:HEX".
+     * A null manifest gives one with only the whole file hash.
+     */
+    static BlockManifest withFileDigest(BlockManifest manifest, String digest) {
+        int separator = digest.indexOf(':');
+        if (separator < 0) {
+            throw new IllegalArgumentException("expected ALGORITHM:HEX, got " + digest);
+        }
+        String fileAlgorithm = digest.substring(0, separator);
+        byte[] fileDigest = Hasher.parseHex(digest.substring(separator + 1));
+        if (manifest == null) {
+            return new BlockManifest(fileAlgorithm, 0, new ArrayList<byte[]>(), fileAlgorithm, fileDigest);
+        }
+        return new BlockManifest(manifest.algorithm, manifest.blockSize, manifest.blockDigests, fileAlgorithm,
+                fileDigest);
+    }
+
+    int getNumberOfBlocks() {
+        return blockDigests.size();
+    }
+
+    byte[] getBlockDigest(int block) {
+        return blockDigests.get(block);
+    }
+}
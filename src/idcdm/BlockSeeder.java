@@ -0,0 +1,143 @@
+package idcdm;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Fills the missing blocks of a download from local copies, before any of them is requested over HTTP: from the
+ * BlockCache, by the hashes listed in the BlockManifest, and from a seed file such as the previous version of the
+ * same artifact.
+ *
+ * The seed file is hashed at the manifest's block boundaries, so it provides the blocks of a new version which
+ * kept the layout of the old one (blocks changed in place or appended); the cache has no such restriction.
+ * Seeded blocks are forced to disk and committed to the metadata like downloaded ones, so the IntegrityVerifier
+ * checks them as well, and only the blocks found nowhere are left to the HTTPRangeGetters.
+ */
+class BlockSeeder {
+    private static final int READ_SIZE = 1024 * 1024;
+
+    private final DownloadableMetadata downloadableMetadata;
+    private final BlockManifest manifest;
+    private final long fileSize;
+    private final BlockCache cache;
+    private final String seedFile;
+    private final Metrics metrics;
+
+    BlockSeeder(DownloadableMetadata downloadableMetadata, BlockManifest manifest, long fileSize, BlockCache cache,
+                String seedFile, Metrics metrics) throws IOException {
+        this.downloadableMetadata = downloadableMetadata;
+        this.manifest = manifest;
+        this.fileSize = fileSize;
+        this.cache = cache;
+        this.seedFile = seedFile;
+        this.metrics = metrics;
+        // blocks would be copied over the ones they are read from
+        if (seedFile != null && new File(seedFile).getCanonicalPath().equals(
+                new File(downloadableMetadata.getFilename()).getCanonicalPath())) {
+            throw new IOException("the seed file must not be the downloaded file: " + seedFile);
+        }
+    }
+
+    /**
+     * Copy every missing block which is in the cache or the seed file, and commit it.
+     *
+     * @return the number of bytes copied
+     */
+    long seed() throws IOException {
+        Map<String, Long> seedBlocks = seedFile != null ? indexSeedFile() : new HashMap<String, Long>();
+        List<Range> seededRanges = new ArrayList<>();
+        long seededBytes = 0;
+        try (FileChannel channel = FileChannel.open(Paths.get(downloadableMetadata.getFilename()),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+             FileChannel seedChannel = seedBlocks.isEmpty() ? null
+                     : FileChannel.open(Paths.get(seedFile), StandardOpenOption.READ)) {
+            for (int block = 0; block < manifest.getNumberOfBlocks(); block++) {
+                long start = block * manifest.blockSize;
+                long end = Math.min(start + manifest.blockSize, fileSize) - 1;
+                if (downloadableMetadata.isCompleted(start, end)) {
+                    continue;
+                }
+                long length = end - start + 1;
+                String key = BlockCache.getKey(manifest.algorithm, manifest.getBlockDigest(block));
+                boolean found = cache != null && cache.copyTo(key, channel, start, length);
+                Long seedOffset = seedBlocks.get(key);
+                if (!found && seedOffset != null) {
+                    copy(seedChannel, seedOffset, channel, start, length);
+                    found = true;
+                }
+                if (!found) {
+                    continue;
+                }
+                Range last = seededRanges.isEmpty() ? null : seededRanges.get(seededRanges.size() - 1);
+                if (last != null && last.getEnd() + 1 == start) {
+                    seededRanges.set(seededRanges.size() - 1, new Range(last.getStart(), end));
+                } else {
+                    seededRanges.add(new Range(start, end));
+                }
+                seededBytes += length;
+            }
+            if (!seededRanges.isEmpty()) {
+                channel.force(true);
+            }
+        }
+        for (Range range : seededRanges) {
+            downloadableMetadata.addRange(range);
+        }
+        downloadableMetadata.sync();
+        metrics.bytesDeduplicated.add(seededBytes);
+        return seededBytes;
+    }
+
+    /**
+     * Hash the seed file block by block.
+     *
+     * @return the offset of the first block of the seed file with each key
+     */
+    private Map<String, Long> indexSeedFile() throws IOException {
+        Map<String, Long> seedBlocks = new HashMap<>();
+        byte[] buffer = new byte[(int) Math.min(READ_SIZE, manifest.blockSize)];
+        try (FileChannel channel = FileChannel.open(Paths.get(seedFile), StandardOpenOption.READ)) {
+            long seedSize = channel.size();
+            for (long start = 0; start < seedSize; start += manifest.blockSize) {
+                long end = Math.min(start + manifest.blockSize, seedSize);
+                Hasher hasher = Hasher.create(manifest.algorithm);
+                ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+                for (long position = start; position < end; ) {
+                    byteBuffer.clear();
+                    byteBuffer.limit((int) Math.min(buffer.length, end - position));
+                    int read = channel.read(byteBuffer, position);
+                    if (read < 0) {
+                        throw new IOException("unexpected end of file at " + position);
+                    }
+                    hasher.update(buffer, 0, read);
+                    position += read;
+                }
+                String key = BlockCache.getKey(manifest.algorithm, hasher.digest());
+                if (!seedBlocks.containsKey(key)) {
+                    seedBlocks.put(key, start);
+                }
+            }
+        }
+        return seedBlocks;
+    }
+
+    private static void copy(FileChannel source, long from, FileChannel target, long to, long length)
+            throws IOException {
+        long copied = 0;
+        while (copied < length) {
+            long transferred = source.transferTo(from + copied, length - copied, target.position(to + copied));
+            if (transferred <= 0) {
+                throw new IOException("unexpected end of file at " + (from + copied));
+            }
+            copied += transferred;
+        }
+    }
+}
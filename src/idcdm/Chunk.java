@@ -0,0 +1,53 @@
+package idcdm;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A chunk of data file
+ *
+ * Contains an offset, bytes of data, and size.
+ * Chunks are owned by a ChunkPool and reused, so the data buffer is handed over as is and never copied.
+ */
+class Chunk {
+    private final ByteBuffer data;
+    private long offset;
+    private int size_in_bytes;
+    private long queuedAt;
+
+    Chunk(ByteBuffer data) {
+        this.data = data;
+    }
+
+    /**
+     * Prepare the chunk for size_in_bytes bytes of data starting at offset.
+     */
+    void reset(long offset, int size_in_bytes) {
+        this.offset = offset;
+        this.size_in_bytes = size_in_bytes;
+        data.clear();
+        data.limit(size_in_bytes);
+    }
+
+    ByteBuffer getData() {
+        return data;
+    }
+
+    long getOffset() {
+        return offset;
+    }
+
+    int getSize_in_bytes() {
+        return size_in_bytes;
+    }
+
+    /**
+     * @return the System.nanoTime() at which the chunk was queued for its FileWriter
+     */
+    long getQueuedAt() {
+        return queuedAt;
+    }
+
+    void setQueuedAt(long queuedAt) {
+        this.queuedAt = queuedAt;
+    }
+}
@@ -0,0 +1,56 @@
+package idcdm;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A bounded pool of reusable chunks.
+ *
+ * Chunks are allocated lazily up to the pool size and then recycled by the FileWriter. When all chunks are in the
+ * queue or being written, acquire() blocks, which throttles the HTTPRangeGetters to the speed of the disk.
+ */
+class ChunkPool {
+    private final BlockingQueue<Chunk> free;
+    private final int poolSize;
+    private final int chunkSize;
+    private int allocated;
+
+    ChunkPool(int poolSize, int chunkSize) {
+        this.free = new ArrayBlockingQueue<>(poolSize);
+        this.poolSize = poolSize;
+        this.chunkSize = chunkSize;
+    }
+
+    Chunk acquire() throws IOException {
+        Chunk chunk = free.poll();
+        if (chunk != null) {
+            return chunk;
+        }
+        synchronized (this) {
+            if (allocated < poolSize) {
+                allocated++;
+                return new Chunk(ByteBuffer.allocate(chunkSize));
+            }
+        }
+        try {
+            return free.take();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("interrupted while waiting for a free chunk");
+        }
+    }
+
+    void release(Chunk chunk) {
+        free.offer(chunk);
+    }
+
+    int getPoolSize() {
+        return poolSize;
+    }
+
+    int getChunkSize() {
+        return chunkSize;
+    }
+}
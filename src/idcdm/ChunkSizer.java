@@ -0,0 +1,44 @@
+package idcdm;
+
+/**
+ * Chooses the size of the next chunk a HTTPRangeGetter reads.
+ *
+ * In fixed mode it always returns the configured chunk size. In adaptive mode it aims for chunks which take about
+ * TARGET_CHUNK_MILLIS to arrive on this connection: the size doubles while the observed throughput would fill a
+ * bigger chunk in that time and halves when it would not fill half of it, within [minChunkSize, maxChunkSize].
+ * Every HTTPRangeGetter owns its own sizer, so it is not thread-safe.
+ */
+class ChunkSizer {
+    static final long TARGET_CHUNK_MILLIS = 50;
+
+    private final boolean adaptive;
+    private final int minChunkSize;
+    private final int maxChunkSize;
+    private int chunkSize;
+
+    ChunkSizer(DownloadConfig config) {
+        this.adaptive = config.adaptiveChunkSize;
+        this.minChunkSize = config.minChunkSize;
+        this.maxChunkSize = config.maxChunkSize;
+        this.chunkSize = adaptive ? minChunkSize : config.chunkSize;
+    }
+
+    int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Record that a chunk of the given size took the given time to read.
+     */
+    void record(int bytes, long nanos) {
+        if (!adaptive || bytes < chunkSize) {
+            return;
+        }
+        double idealSize = bytes * (TARGET_CHUNK_MILLIS * 1000000.0 / Math.max(nanos, 1));
+        if (idealSize >= 2.0 * chunkSize && chunkSize < maxChunkSize) {
+            chunkSize = Math.min(chunkSize * 2, maxChunkSize);
+        } else if (idealSize < chunkSize / 2.0 && chunkSize > minChunkSize) {
+            chunkSize = Math.max(chunkSize / 2, minChunkSize);
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package idcdm;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.Semaphore;
+
+/**
+ * A limit on the number of HTTP requests in flight.
+ *
+ * A HTTPRangeGetter holds a permit while it fetches a range, and gives it back between ranges. A budget may have a
+ * parent, e.g. a per-host budget under the global one: acquire() then takes a permit from the budget and then from
+ * its parent, so a getter waiting for its host never holds a global permit.
+ *
+ * The limit of a budget can change while it is in use (see ConnectionController): lowering it takes effect as
+ * getters give their permits back between ranges, no request is interrupted.
+ */
+class ConnectionBudget {
+    private final ResizableSemaphore permits;
+    private final ConnectionBudget parent;
+    private int maxConnections;
+
+    ConnectionBudget(int maxConnections) {
+        this(maxConnections, null);
+    }
+
+    ConnectionBudget(int maxConnections, ConnectionBudget parent) {
+        this.permits = new ResizableSemaphore(maxConnections);
+        this.parent = parent;
+        this.maxConnections = maxConnections;
+    }
+
+    void acquire() throws InterruptedIOException {
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("interrupted while waiting for a connection");
+        }
+        if (parent != null) {
+            try {
+                parent.acquire();
+            } catch (InterruptedIOException e) {
+                permits.release();
+                throw e;
+            }
+        }
+    }
+
+    void release() {
+        if (parent != null) {
+            parent.release();
+        }
+        permits.release();
+    }
+
+    synchronized int getMaxConnections() {
+        return maxConnections;
+    }
+
+    synchronized void setMaxConnections(int maxConnections) {
+        if (maxConnections > this.maxConnections) {
+            permits.release(maxConnections - this.maxConnections);
+        } else {
+            // may go negative while the getters over the new limit finish their requests
+            permits.reducePermits(this.maxConnections - maxConnections);
+        }
+        this.maxConnections = maxConnections;
+    }
+
+    private static class ResizableSemaphore extends Semaphore {
+        private static final long serialVersionUID = 1L;
+
+        ResizableSemaphore(int permits) {
+            super(permits, true);
+        }
+
+        @Override
+        protected void reducePermits(int reduction) {
+            super.reducePermits(reduction);
+        }
+    }
+}
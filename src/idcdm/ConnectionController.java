@@ -0,0 +1,119 @@
+package idcdm;
+
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Tunes the number of connections of a download while it runs, within [minConnections, maxConnections].
+ *
+ * The download starts with maxConnections HTTPRangeGetters, but they share a ConnectionBudget whose limit is the
+ * number of requests allowed in flight. Every INTERVAL_MILLIS the controller measures the aggregate throughput and
+ * the failed requests of the interval, and moves the limit like a congestion control loop:
+ * - while adding connections pays off (the throughput grew by MIN_GAIN), the limit doubles, then grows by one
+ * - when the last increase did not pay off, it is undone and the controller holds for PROBE_INTERVALS intervals
+ *   before it probes one more connection, since the path or the server may have changed
+ * - when requests fail (the server throttles, or refuses connections) the limit drops by a quarter
+ * The interval right after a change is not measured, so the new connections have time to ramp up.
+ */
+class ConnectionController implements Runnable {
+    static final long INTERVAL_MILLIS = 2000;
+    static final double MIN_GAIN = 0.05;
+    static final int PROBE_INTERVALS = 5;
+    private static final Logger LOGGER = Logger.getLogger("IdcDm.ConnectionController");
+
+    private final List<HTTPRangeGetter> getters;
+    private final ConnectionBudget budget;
+    private final int minConnections;
+    private final int maxConnections;
+    private final Metrics metrics;
+    private volatile boolean stopped;
+    private boolean slowStart = true;
+    private long lastBytes;
+    private int lastErrors;
+    // the throughput before the last increase, or -1 when the last interval was not an increase
+    private long baseline = -1;
+    private int previousLimit;
+    private int holdIntervals;
+    private boolean settling;
+
+    ConnectionController(List<HTTPRangeGetter> getters, ConnectionBudget budget, int minConnections,
+                         int maxConnections, Metrics metrics) {
+        this.getters = getters;
+        this.budget = budget;
+        this.metrics = metrics;
+        this.minConnections = minConnections;
+        this.maxConnections = maxConnections;
+    }
+
+    void stop() {
+        stopped = true;
+    }
+
+    @Override
+    public void run() {
+        while (!stopped) {
+            try {
+                Thread.sleep(INTERVAL_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            adjust();
+        }
+    }
+
+    private void adjust() {
+        long bytes = 0;
+        int errors = 0;
+        for (HTTPRangeGetter getter : getters) {
+            bytes += getter.getBytesReceived();
+            errors += getter.getErrors();
+        }
+        long throughput = (bytes - lastBytes) * 1000 / INTERVAL_MILLIS;
+        int newErrors = errors - lastErrors;
+        lastBytes = bytes;
+        lastErrors = errors;
+        int limit = budget.getMaxConnections();
+        if (newErrors > 0) {
+            slowStart = false;
+            baseline = -1;
+            holdIntervals = PROBE_INTERVALS;
+            setLimit(limit - Math.max(limit / 4, 1), throughput, newErrors + " failed requests");
+            return;
+        }
+        if (settling) {
+            settling = false;
+            return;
+        }
+        if (baseline >= 0) {
+            boolean gained = throughput >= baseline * (1 + MIN_GAIN);
+            baseline = -1;
+            if (!gained) {
+                slowStart = false;
+                holdIntervals = PROBE_INTERVALS;
+                setLimit(previousLimit, throughput, "no gain");
+                return;
+            }
+        }
+        if (holdIntervals > 0) {
+            holdIntervals--;
+            return;
+        }
+        if (limit < maxConnections) {
+            baseline = throughput;
+            previousLimit = limit;
+            setLimit(slowStart ? limit * 2 : limit + 1, throughput, "probing");
+        }
+    }
+
+    private void setLimit(int limit, long throughput, String reason) {
+        limit = Math.max(minConnections, Math.min(limit, maxConnections));
+        if (limit == budget.getMaxConnections()) {
+            return;
+        }
+        metrics.connectionLimitChanges.increment();
+        LOGGER.fine(throughput + " Bps with " + budget.getMaxConnections() + " connections, " + reason + ", now "
+                + limit);
+        budget.setMaxConnections(limit);
+        settling = true;
+    }
+}
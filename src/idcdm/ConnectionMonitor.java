@@ -0,0 +1,96 @@
+package idcdm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Watches the throughput of the HTTPRangeGetters of a download and replaces stragglers.
+ *
+ * Every CHECK_INTERVAL_MILLIS it measures how many bytes each getter received since the previous check, and keeps a
+ * smoothed rate of every getter which received something. Idle getters keep their last rate, so at the tail of a
+ * download, when most connections have nothing left to do, a slow one is still compared to what the others
+ * achieved. A getter has its request cancelled when the request has run for at least GRACE_MILLIS, its rate is
+ * below stragglerRatio times the median rate, and it would need more than GRACE_MILLIS to finish at that rate.
+ * Its unread bytes go back to the scheduler and the range is requested again on a new connection, so a stalled
+ * connection does not hold the tail of the file until the read timeout. At least MIN_PEERS measured getters are
+ * needed for the median to mean anything.
+ */
+class ConnectionMonitor implements Runnable {
+    static final long CHECK_INTERVAL_MILLIS = 1000;
+    static final long GRACE_MILLIS = 3000;
+    static final int MIN_PEERS = 3;
+    private static final Logger LOGGER = Logger.getLogger("IdcDm.ConnectionMonitor");
+
+    private final List<HTTPRangeGetter> getters;
+    private final double stragglerRatio;
+    private final long[] lastBytes;
+    // bytes per second of every getter while it was busy, -1 until measured
+    private final long[] smoothedRates;
+    private volatile boolean stopped;
+
+    ConnectionMonitor(List<HTTPRangeGetter> getters, double stragglerRatio) {
+        this.getters = new ArrayList<>(getters);
+        this.stragglerRatio = stragglerRatio;
+        this.lastBytes = new long[getters.size()];
+        this.smoothedRates = new long[getters.size()];
+        Arrays.fill(smoothedRates, -1);
+    }
+
+    void stop() {
+        stopped = true;
+    }
+
+    @Override
+    public void run() {
+        while (!stopped) {
+            try {
+                Thread.sleep(CHECK_INTERVAL_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            check();
+        }
+    }
+
+    private void check() {
+        long now = System.nanoTime();
+        int n = getters.size();
+        long[] rates = new long[n];
+        boolean[] busy = new boolean[n];
+        for (int i = 0; i < n; i++) {
+            HTTPRangeGetter getter = getters.get(i);
+            long bytes = getter.getBytesReceived();
+            rates[i] = (bytes - lastBytes[i]) * 1000 / CHECK_INTERVAL_MILLIS;
+            lastBytes[i] = bytes;
+            long requestStart = getter.getRequestStart();
+            busy[i] = requestStart >= 0 && (now - requestStart) / 1000000 >= GRACE_MILLIS;
+            // a getter which was busy for part of the interval is measured too, a little too low
+            if (busy[i] || rates[i] > 0) {
+                smoothedRates[i] = smoothedRates[i] < 0 ? rates[i] : (smoothedRates[i] + rates[i]) / 2;
+            }
+        }
+        List<Long> measured = new ArrayList<>();
+        for (long rate : smoothedRates) {
+            if (rate >= 0) {
+                measured.add(rate);
+            }
+        }
+        if (measured.size() < MIN_PEERS) {
+            return;
+        }
+        Collections.sort(measured);
+        long median = measured.get(measured.size() / 2);
+        for (int i = 0; i < n; i++) {
+            // not worth a new connection if the rest arrives within the grace period anyway
+            if (busy[i] && smoothedRates[i] < median * stragglerRatio
+                    && getters.get(i).getRemaining() > smoothedRates[i] * GRACE_MILLIS / 1000) {
+                LOGGER.fine("connection at " + smoothedRates[i] + " Bps, median " + median + " Bps, replacing it");
+                getters.get(i).cancel();
+                smoothedRates[i] = -1;
+            }
+        }
+    }
+}
@@ -0,0 +1,290 @@
+package idcdm;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tunables of a download.
+ *
+ * The network read size (bytes per socket read and token bucket take), the chunk size (bytes per queue item and
+ * positional write) and the metadata commit granularity (syncBytes / syncIntervalMillis) are independent.
+ * The metadata records exact byte ranges, so any of them may change between a run and its resume.
+ */
+class DownloadConfig {
+    static final int DEFAULT_MAX_AUTO_CONNECTIONS = 16;
+
+    enum Preallocation { NONE, SPARSE, FULL }
+
+    int numberOfWorkers = 1;
+    // let a ConnectionController choose the number of connections within [minConnections, numberOfWorkers]
+    boolean autoConnections = false;
+    int minConnections = 1;
+    Long maxBytesPerSecond = null;
+    Long burstBytes = null;
+    Long maxBytesPerSecondPerConnection = null;
+    // null means the TokenBucket refills itself lazily, otherwise a RateLimiter thread refills it in this mode
+    RateLimiter.Mode refillMode = null;
+    int readSize = 16 * 1024;
+    int chunkSize = 64 * 1024;
+    boolean adaptiveChunkSize = false;
+    int minChunkSize = 64 * 1024;
+    int maxChunkSize = 4 * 1024 * 1024;
+    // 0 disables multi-range requests
+    int multiRangeCount = 0;
+    boolean virtualThreads = false;
+    // global number of requests in flight, 0 for no limit beyond the number of workers
+    int maxConnections = 0;
+    int maxConnectionsPerHost = 0;
+    String batchFile = null;
+    int parallelFiles = 4;
+    int writerThreads = 1;
+    boolean memoryMapped = false;
+    Preallocation preallocation = Preallocation.SPARSE;
+    // expected hash of the whole file as ALGORITHM:HEX, and a manifest with per-block hashes
+    String digest = null;
+    String manifestFile = null;
+    int verifyThreads = 2;
+    String cacheDirectory = null;
+    long cacheBytes = 1024L * 1024 * 1024;
+    String seedFile = null;
+    List<String> mirrors = new ArrayList<>();
+    // how far ahead of the reader a streamed download goes, and whether the command line streams to stdout
+    long streamWindowBytes = 64 * 1024 * 1024;
+    boolean stdout = false;
+    // failures in a row after which a connection gives up, and the straggler threshold, 0 to keep slow connections
+    int maxRetries = 8;
+    double stragglerRatio = 0.25;
+    // JSON lines dump of the Metrics, none by default
+    String metricsFile = null;
+    long metricsIntervalMillis = 1000;
+    // whether the command line also prints the fine-grained messages of the "IdcDm" loggers
+    boolean verbose = false;
+    // whether the command line reads new download limits from stdin while downloading
+    boolean interactive = false;
+    long poolBytes = 64 * 1024 * 1024;
+    long syncBytes = FileWriter.DEFAULT_SYNC_BYTES;
+    long syncIntervalMillis = FileWriter.DEFAULT_SYNC_INTERVAL_MILLIS;
+
+    /**
+     * Parse a single "--name=value" command-line option.
+     *
+     * @return false if the option is unknown
+     * @throws IllegalArgumentException if the value is malformed or out of range
+     */
+    boolean parseOption(String option) {
+        int separator = option.indexOf('=');
+        String name = separator < 0 ? option : option.substring(0, separator);
+        String value = separator < 0 ? null : option.substring(separator + 1);
+        switch (name) {
+            case "--connections":
+                parseConnections(value);
+                break;
+            case "--rate":
+                maxBytesPerSecond = positive(name, parseSize(value));
+                break;
+            case "--read-size":
+                readSize = positiveInt(name, parseSize(value));
+                break;
+            case "--chunk-size":
+                chunkSize = positiveInt(name, parseSize(value));
+                break;
+            case "--adaptive":
+                adaptiveChunkSize = true;
+                if (value != null) {
+                    String[] bounds = value.split("-");
+                    minChunkSize = positiveInt(name, parseSize(bounds[0]));
+                    maxChunkSize = positiveInt(name, parseSize(bounds[1]));
+                    if (minChunkSize > maxChunkSize) {
+                        throw new IllegalArgumentException("bad chunk size bounds: " + value);
+                    }
+                }
+                break;
+            case "--burst":
+                burstBytes = positive(name, parseSize(value));
+                break;
+            case "--connection-limit":
+                maxBytesPerSecondPerConnection = positive(name, parseSize(value));
+                break;
+            case "--refill":
+                refillMode = value.equals("lazy") ? null : RateLimiter.Mode.valueOf(value.toUpperCase());
+                break;
+            case "--multi-range":
+                multiRangeCount = value == null ? 16 : Integer.parseInt(value);
+                break;
+            case "--virtual-threads":
+                virtualThreads = true;
+                break;
+            case "--max-connections":
+                maxConnections = Integer.parseInt(value);
+                break;
+            case "--host-connections":
+                maxConnectionsPerHost = Integer.parseInt(value);
+                break;
+            case "--batch":
+                batchFile = value;
+                break;
+            case "--parallel-files":
+                parallelFiles = positiveInt(name, Integer.parseInt(value));
+                break;
+            case "--writers":
+                writerThreads = positiveInt(name, Integer.parseInt(value));
+                break;
+            case "--mmap":
+                memoryMapped = true;
+                break;
+            case "--preallocate":
+                preallocation = Preallocation.valueOf(value.toUpperCase());
+                break;
+            case "--digest":
+                digest = value;
+                break;
+            case "--manifest":
+                manifestFile = value;
+                break;
+            case "--mirror":
+                mirrors.add(value);
+                break;
+            case "--stdout":
+                stdout = true;
+                break;
+            case "--stream-window":
+                streamWindowBytes = parseSize(value);
+                break;
+            case "--cache":
+                cacheDirectory = value;
+                break;
+            case "--cache-size":
+                cacheBytes = parseSize(value);
+                break;
+            case "--seed":
+                seedFile = value;
+                break;
+            case "--verify-threads":
+                verifyThreads = positiveInt(name, Integer.parseInt(value));
+                break;
+            case "--retries":
+                maxRetries = Integer.parseInt(value);
+                break;
+            case "--straggler-ratio":
+                stragglerRatio = Double.parseDouble(value);
+                break;
+            case "--metrics":
+                metricsFile = value;
+                break;
+            case "--metrics-interval":
+                metricsIntervalMillis = Long.parseLong(value);
+                break;
+            case "--buffer-memory":
+                poolBytes = parseSize(value);
+                break;
+            case "--sync-bytes":
+                syncBytes = parseSize(value);
+                break;
+            case "--sync-interval":
+                syncIntervalMillis = Long.parseLong(value);
+                break;
+            case "--verbose":
+                verbose = true;
+                break;
+            case "--interactive":
+                interactive = true;
+                break;
+            default:
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Parse the MAX-CONCURRENT-CONNECTIONS argument: a number, "auto", or "auto:MIN-MAX".
+     */
+    void parseConnections(String value) {
+        if (value.equals("auto")) {
+            autoConnections = true;
+            numberOfWorkers = DEFAULT_MAX_AUTO_CONNECTIONS;
+        } else if (value.startsWith("auto:")) {
+            String[] bounds = value.substring("auto:".length()).split("-");
+            setAutoConnections(Integer.parseInt(bounds[0]), Integer.parseInt(bounds[1]));
+        } else {
+            numberOfWorkers = positiveInt("--connections", Integer.parseInt(value));
+        }
+    }
+
+    /**
+     * Let a ConnectionController choose the number of connections within [min, max].
+     */
+    void setAutoConnections(int min, int max) {
+        if (min < 1 || min > max) {
+            throw new IllegalArgumentException("bad connection bounds: " + min + "-" + max);
+        }
+        autoConnections = true;
+        minConnections = min;
+        numberOfWorkers = max;
+    }
+
+    /**
+     * @return value if it is at least 1
+     * @throws IllegalArgumentException otherwise, naming the option
+     */
+    static long positive(String option, long value) {
+        if (value < 1) {
+            throw new IllegalArgumentException(option + " must be at least 1: " + value);
+        }
+        return value;
+    }
+
+    /**
+     * @return value if it is at least 1 and fits an int
+     * @throws IllegalArgumentException otherwise, naming the option
+     */
+    static int positiveInt(String option, long value) {
+        if (value > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException(option + " is too large: " + value);
+        }
+        return (int) positive(option, value);
+    }
+
+    /**
+     * @return the token bucket capacity, by default a tenth of a second worth of tokens
+     */
+    long getBurstBytes() {
+        return burstBytes != null ? burstBytes : getDefaultBurst(maxBytesPerSecond);
+    }
+
+    static long getDefaultBurst(long bytesPerSecond) {
+        return Math.max(bytesPerSecond / 10, 1);
+    }
+
+    /**
+     * @return the capacity of every pooled chunk
+     */
+    int getChunkCapacity() {
+        return adaptiveChunkSize ? maxChunkSize : chunkSize;
+    }
+
+    /**
+     * @return the number of pooled chunks, at least two per connection
+     */
+    int getPoolSize() {
+        return (int) Math.max(poolBytes / getChunkCapacity(), 2 * numberOfWorkers);
+    }
+
+    /**
+     * Parse a number of bytes with an optional K, M or G suffix.
+     */
+    static long parseSize(String value) {
+        long multiplier = 1;
+        char suffix = Character.toUpperCase(value.charAt(value.length() - 1));
+        if (suffix == 'K') {
+            multiplier = 1024;
+        } else if (suffix == 'M') {
+            multiplier = 1024 * 1024;
+        } else if (suffix == 'G') {
+            multiplier = 1024 * 1024 * 1024;
+        }
+        if (multiplier != 1) {
+            value = value.substring(0, value.length() - 1);
+        }
+        return Long.parseLong(value) * multiplier;
+    }
+}
@@ -0,0 +1,533 @@
+package idcdm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Downloads files with resources shared by all of them: the global TokenBucket (and its RateLimiter), the global
+ * ConnectionBudget with a child budget per host, and the ChunkPool. Several downloads may run concurrently on one
+ * engine, each with its own DownloadableMetadata, FileWriter and RangeScheduler, so each resumes independently.
+ * The engine's Metrics are registered in JMX, and dumped to a file as JSON lines when configured. The classes of
+ * the engine log what they do through java.util.logging, to loggers named "IdcDm.<class>" under the "IdcDm" logger.
+ */
+class DownloadEngine {
+    private static final AtomicInteger ENGINES = new AtomicInteger();
+    private static final int PREALLOCATE_BUFFER_SIZE = 1024 * 1024;
+    // passes downloading corrupt blocks again after the first one, before the download fails
+    static final int MAX_REPAIR_PASSES = 5;
+    private static final Logger LOGGER = Logger.getLogger("IdcDm.DownloadEngine");
+
+    private final DownloadConfig config;
+    // unlimited while there is no global limit, so the getters skip it
+    private final TokenBucket tokenBucket;
+    // in a refill mode, started with the first global limit
+    private RateLimiter rateLimiter;
+    private Thread rateLimiterThread;
+    private final ConnectionBudget connectionBudget;
+    private final Map<String, ConnectionBudget> hostBudgets = new HashMap<>();
+    // output files of the running downloads
+    private final Set<String> filesInUse = new HashSet<>();
+    private final ChunkPool chunkPool;
+    private final BlockCache blockCache;
+    private final Metrics metrics = new Metrics();
+    private ObjectName metricsName;
+    private final MetricsReporter metricsReporter;
+    private final Thread metricsReporterThread;
+
+    DownloadEngine(DownloadConfig config) {
+        this.config = config;
+        // let the JDK keep an idle keep-alive connection for every worker between its Range requests
+        if (System.getProperty("http.maxConnections") == null) {
+            System.setProperty("http.maxConnections",
+                    String.valueOf(Math.max(Math.max(config.numberOfWorkers, config.maxConnectionsPerHost), 5)));
+        }
+        tokenBucket = new TokenBucket();
+        if (config.maxBytesPerSecond != null) {
+            setMaxBytesPerSecond(config.maxBytesPerSecond);
+        }
+        connectionBudget = config.maxConnections > 0 ? new ConnectionBudget(config.maxConnections) : null;
+        chunkPool = new ChunkPool(config.getPoolSize(), config.getChunkCapacity());
+        BlockCache cache = null;
+        if (config.cacheDirectory != null) {
+            try {
+                cache = new BlockCache(config.cacheDirectory, config.cacheBytes);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "cannot open the block cache " + config.cacheDirectory, e);
+            }
+        }
+        blockCache = cache;
+        try {
+            metricsName = new ObjectName("IdcDm:type=Metrics,name=engine-" + ENGINES.incrementAndGet());
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, metricsName);
+        } catch (JMException e) {
+            LOGGER.log(Level.WARNING, "cannot register the metrics in JMX", e);
+            metricsName = null;
+        }
+        if (config.metricsFile != null) {
+            metricsReporter = new MetricsReporter(metrics, config.metricsFile, config.metricsIntervalMillis);
+            metricsReporterThread = new Thread(metricsReporter);
+            metricsReporterThread.setDaemon(true);
+            metricsReporterThread.start();
+        } else {
+            metricsReporter = null;
+            metricsReporterThread = null;
+        }
+    }
+
+    /**
+     * Initiate the file's metadata and:
+     * 1. Ask the server for the file's size and validators, conditionally on the saved ones when resuming, start over
+     *    if the file changed, and preallocate the output file
+     * 2. With a block manifest, copy the blocks found in the BlockCache or the seed file
+     * 3. Setup the DownloadableMetadata, the WriteStage (or the MappedOutput), a RangeScheduler over all the missing
+     *    ranges, and a pool of HTTPRangeGetters which take ranges from the scheduler until none are left (a streamed
+     *    download's scheduler follows the reader of its DownloadStream)
+     * 4. Join the HTTPRangeGetters and send finish marker to the FileWriters
+     * 5. Join the FileWriters
+     * 6. With a manifest or digest, wait for the IntegrityVerifier, download corrupt blocks again and check the hash
+     *    of the whole file
+     *
+     * Finally, delete the metadata if the whole file is on disk.
+     *
+     * @param url URL to download
+     * @return true if the download succeeded
+     */
+    boolean download(String url) {
+        return download(url, config.mirrors);
+    }
+
+    /**
+     * Download url, spreading the requests over it and its mirrors. The file is named after url, and a mirror is
+     * used only if it serves the same file: same size and, unless a manifest or digest verifies the content, the
+     * same ETag or Last-Modified.
+     *
+     * @param mirrors other URLs of the same file
+     * @return true if the download succeeded
+     */
+    boolean download(String url, List<String> mirrors) {
+        return download(url, mirrors, new DownloadHandle(url, null));
+    }
+
+    /**
+     * Download url and its mirrors under the control of handle, which is told about the progress and may pause,
+     * resume or cancel the download. A streamed download ends its DownloadStream, which fails the reads past what
+     * was downloaded if the download did not succeed. The download fails at once if another download of the engine
+     * is writing the same output file, e.g. a URL with the same name on another host.
+     *
+     * @return true if the download succeeded, false if it failed or was cancelled
+     */
+    boolean download(String url, List<String> mirrors, DownloadHandle handle) {
+        boolean succeeded = false;
+        String filename = DownloadableMetadata.getName(url);
+        boolean reserved;
+        synchronized (filesInUse) {
+            reserved = filesInUse.add(filename);
+        }
+        try {
+            if (!reserved) {
+                LOGGER.severe(url + ": another download is writing " + filename);
+                return false;
+            }
+            succeeded = downloadFile(url, mirrors, handle);
+            return succeeded;
+        } finally {
+            if (reserved) {
+                synchronized (filesInUse) {
+                    filesInUse.remove(filename);
+                }
+            }
+            if (handle.getStream() != null) {
+                handle.getStream().finish(succeeded);
+            }
+        }
+    }
+
+    private boolean downloadFile(String url, List<String> mirrors, DownloadHandle handle) {
+        DownloadableMetadata downloadableMetadata;
+        long fileSize;
+        SourceSelector sources;
+        try {
+            // a resume asks whether the file changed since the saved version, before loading any range
+            RemoteFile savedFile = DownloadableMetadata.loadRemoteFile(url);
+            RemoteFile remoteFile = RemoteFile.probe(url, savedFile);
+            if (savedFile != null && remoteFile != savedFile && !savedFile.matches(remoteFile)) {
+                LOGGER.fine(url + ": the remote file changed, downloading it from the start");
+                DownloadableMetadata.discard(url);
+            }
+            fileSize = remoteFile.size;
+            LOGGER.fine(url + ": " + fileSize + " bytes");
+            List<SourceSelector.Source> sourceList = new ArrayList<>();
+            for (String source : getSources(url, remoteFile, mirrors)) {
+                sourceList.add(new SourceSelector.Source(source, getBudget(source)));
+            }
+            sources = new SourceSelector(sourceList);
+            downloadableMetadata = new DownloadableMetadata(url, remoteFile);
+            downloadableMetadata.setProgressListener(new ProgressListener() {
+                @Override
+                public void progress(long bytesDownloaded, long size) {
+                    handle.progress(bytesDownloaded, size);
+                }
+            });
+            preallocate(downloadableMetadata.getFilename(), fileSize, config.preallocation);
+        } catch (IOException | ClassNotFoundException e) {
+            LOGGER.log(Level.SEVERE, url + ": download failed", e);
+            return false;
+        }
+        IntegrityVerifier verifier = null;
+        DownloadStream stream = handle.getStream();
+        try {
+            BlockManifest manifest = config.manifestFile != null ? BlockManifest.load(config.manifestFile) : null;
+            if (config.digest != null) {
+                manifest = BlockManifest.withFileDigest(manifest, config.digest);
+            }
+            boolean blockHashes = manifest != null && manifest.getNumberOfBlocks() > 0;
+            if (stream != null) {
+                // the reader waits for whole blocks to be verified, so the window must hold more than one
+                long window = blockHashes ? Math.max(config.streamWindowBytes, 2 * manifest.blockSize)
+                        : config.streamWindowBytes;
+                stream.open(downloadableMetadata.getFilename(), fileSize, window);
+                if (!blockHashes) {
+                    downloadableMetadata.setStream(stream);
+                    for (Range range : downloadableMetadata.getCompletedRanges()) {
+                        stream.readable(range.getStart(), range.getEnd());
+                    }
+                }
+            }
+            if (manifest != null) {
+                verifier = new IntegrityVerifier(downloadableMetadata, manifest, fileSize, config.verifyThreads,
+                        blockCache, metrics);
+                if (stream != null && blockHashes) {
+                    verifier.setStream(stream);
+                }
+                verifier.start();
+            }
+            if (blockCache != null || config.seedFile != null) {
+                if (manifest == null || manifest.getNumberOfBlocks() == 0) {
+                    LOGGER.warning(url + ": a block cache or seed file needs a manifest with block hashes, "
+                            + "downloading everything");
+                } else {
+                    long seededBytes = new BlockSeeder(downloadableMetadata, manifest, fileSize, blockCache,
+                            config.seedFile, metrics).seed();
+                    LOGGER.fine(url + ": " + seededBytes + " bytes copied from local blocks");
+                }
+            }
+            // corrupt blocks found by the verifier are missing again, download them in another pass
+            for (int pass = 0; ; pass++) {
+                if (handle.isCancelled()
+                        || !downloadPass(url, sources, handle, downloadableMetadata, fileSize)) {
+                    return false;
+                }
+                int corruptBlocks = verifier != null ? verifier.awaitBlocks() : 0;
+                if (downloadableMetadata.isCompleted()) {
+                    break;
+                }
+                if (corruptBlocks == 0 || pass == MAX_REPAIR_PASSES) {
+                    return false;
+                }
+                LOGGER.fine(url + ": downloading " + corruptBlocks + " corrupt blocks again");
+            }
+            if (verifier != null && !verifier.verifyFile()) {
+                return false;
+            }
+        } catch (IOException | IllegalArgumentException | InterruptedException e) {
+            LOGGER.log(Level.SEVERE, url + ": download failed", e);
+            return false;
+        } finally {
+            if (verifier != null) {
+                verifier.close();
+            }
+        }
+        if (!downloadableMetadata.isCompleted()) {
+            return false;
+        }
+        downloadableMetadata.delete();
+        return true;
+    }
+
+    /**
+     * Download every missing range once, and wait until it is committed.
+     *
+     * @return false if the output could not be opened or the wait was interrupted
+     */
+    private boolean downloadPass(String url, SourceSelector sources, DownloadHandle handle,
+                                 DownloadableMetadata downloadableMetadata, long fileSize) {
+        int numberOfWorkers = config.numberOfWorkers;
+        WriteStage writeStage = null;
+        MappedOutput mappedOutput = null;
+        if (config.memoryMapped) {
+            try {
+                mappedOutput = new MappedOutput(downloadableMetadata, fileSize, config, metrics);
+            } catch (IOException e) {
+                LOGGER.log(Level.SEVERE, url + ": cannot map the output file", e);
+                return false;
+            }
+        } else {
+            writeStage = new WriteStage(downloadableMetadata, chunkPool, config, metrics);
+            writeStage.start();
+        }
+        RangeScheduler scheduler = new RangeScheduler(downloadableMetadata.getMissingRanges(), numberOfWorkers);
+        DownloadStream stream = handle.getStream();
+        if (stream != null) {
+            stream.attach(scheduler);
+        }
+        ExecutorService executor = EngineThreads.newWorkerPool(numberOfWorkers, config.virtualThreads);
+        // all the getters exist, the budget of the download decides how many of them may have a request in flight:
+        // the number set through the handle, or the ConnectionController's choice in auto mode
+        int connections = handle.getConnections() > 0 ? Math.min(handle.getConnections(), numberOfWorkers)
+                : config.autoConnections ? config.minConnections : numberOfWorkers;
+        boolean autoConnections = config.autoConnections && handle.getConnections() == 0;
+        // the getters also hold the budget of the host of every source they send a request to
+        ConnectionBudget budget = new ConnectionBudget(connections);
+        ConnectionController controller = null;
+        List<HTTPRangeGetter> getters = new ArrayList<>();
+        for (int i = 0; i < numberOfWorkers; i++) {
+            // each connection gets its own bucket under the global one when it has its own limit
+            TokenBucket connectionBucket = tokenBucket;
+            if (config.maxBytesPerSecondPerConnection != null) {
+                long perConnection = config.maxBytesPerSecondPerConnection;
+                connectionBucket = new TokenBucket(perConnection, DownloadConfig.getDefaultBurst(perConnection),
+                        tokenBucket);
+            }
+            getters.add(new HTTPRangeGetter(sources, scheduler, writeStage, mappedOutput, chunkPool, connectionBucket,
+                    config, budget, metrics, handle));
+        }
+        metrics.register(getters);
+        List<Future<?>> futures = new ArrayList<>();
+        for (HTTPRangeGetter getter : getters) {
+            futures.add(executor.submit(getter));
+        }
+        executor.shutdown();
+        ConnectionMonitor monitor = null;
+        Thread monitorThread = null;
+        if (config.stragglerRatio > 0 && numberOfWorkers >= ConnectionMonitor.MIN_PEERS) {
+            monitor = new ConnectionMonitor(getters, config.stragglerRatio);
+            monitorThread = EngineThreads.newThread(monitor, config.virtualThreads);
+            monitorThread.setDaemon(true);
+            monitorThread.start();
+        }
+        Thread controllerThread = null;
+        if (autoConnections) {
+            controller = new ConnectionController(getters, budget, config.minConnections, numberOfWorkers, metrics);
+            controllerThread = EngineThreads.newThread(controller, config.virtualThreads);
+            controllerThread.setDaemon(true);
+            controllerThread.start();
+        }
+        handle.attach(getters, scheduler, budget, controller);
+        if (handle.isCancelled()) {
+            // cancelled before the handle could close the scheduler
+            scheduler.close();
+        }
+        try {
+            for (Future<?> future : futures) {
+                awaitGetter(future, mappedOutput);
+            }
+            if (monitor != null) {
+                monitor.stop();
+                monitorThread.interrupt();
+            }
+            if (controller != null) {
+                controller.stop();
+                controllerThread.interrupt();
+            }
+            if (writeStage != null) {
+                writeStage.finish();
+            } else {
+                mappedOutput.finish();
+            }
+        } catch (InterruptedException | IOException e) {
+            LOGGER.log(Level.SEVERE, url + ": download failed", e);
+            return false;
+        } finally {
+            handle.attach(null, null, null, null);
+            if (stream != null) {
+                stream.attach(null);
+            }
+            metrics.unregister(getters);
+        }
+        return true;
+    }
+
+    /**
+     * Wait for a getter to finish. Meanwhile commit the MappedOutput when it is due, since nothing else does while
+     * the getters are idle, e.g. waiting for the reader of a streamed download.
+     */
+    private void awaitGetter(Future<?> future, MappedOutput mappedOutput) throws InterruptedException, IOException {
+        while (true) {
+            try {
+                future.get(config.syncIntervalMillis, TimeUnit.MILLISECONDS);
+                return;
+            } catch (ExecutionException e) {
+                LOGGER.log(Level.SEVERE, "a connection failed", e.getCause());
+                return;
+            } catch (TimeoutException e) {
+                if (mappedOutput != null) {
+                    mappedOutput.commitIfDue();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return url and the mirrors which serve the same file as remoteFile
+     */
+    private List<String> getSources(String url, RemoteFile remoteFile, List<String> mirrors) {
+        boolean contentVerified = config.manifestFile != null || config.digest != null;
+        List<String> sources = new ArrayList<>();
+        sources.add(url);
+        for (String mirror : mirrors) {
+            try {
+                RemoteFile mirrorFile = RemoteFile.probe(mirror, null);
+                if (contentVerified ? mirrorFile.size == remoteFile.size : remoteFile.matches(mirrorFile)) {
+                    sources.add(mirror);
+                } else {
+                    LOGGER.warning("ignoring mirror " + mirror + ": it serves a different file");
+                }
+            } catch (IOException e) {
+                LOGGER.warning("ignoring mirror " + mirror + ": " + e.getMessage());
+            }
+        }
+        return sources;
+    }
+
+    /**
+     * @return the budget of the url's host, under the global budget, or the global budget (possibly null) if hosts
+     *         are not limited
+     */
+    private ConnectionBudget getBudget(String url) {
+        if (config.maxConnectionsPerHost <= 0) {
+            return connectionBudget;
+        }
+        String host;
+        try {
+            host = new URL(url).getHost();
+        } catch (IOException e) {
+            host = url;
+        }
+        synchronized (hostBudgets) {
+            ConnectionBudget budget = hostBudgets.get(host);
+            if (budget == null) {
+                budget = new ConnectionBudget(config.maxConnectionsPerHost, connectionBudget);
+                hostBudgets.put(host, budget);
+            }
+            return budget;
+        }
+    }
+
+    boolean isRateLimited() {
+        return !tokenBucket.isUnlimited();
+    }
+
+    /**
+     * Change the global download limit of all the running downloads, or set the first one.
+     */
+    synchronized void setMaxBytesPerSecond(long maxBytesPerSecond) {
+        long burst = config.burstBytes != null ? config.burstBytes : DownloadConfig.getDefaultBurst(maxBytesPerSecond);
+        if (config.refillMode == null) {
+            tokenBucket.setRate(maxBytesPerSecond, burst);
+        } else if (rateLimiter == null) {
+            // refilled by the RateLimiter only
+            tokenBucket.setRate(0, burst);
+            rateLimiter = new RateLimiter(tokenBucket, maxBytesPerSecond, config.refillMode);
+            rateLimiterThread = new Thread(rateLimiter);
+            rateLimiterThread.start();
+        } else {
+            rateLimiter.setMaxBytesPerSecond(maxBytesPerSecond);
+        }
+        tokenBucket.setUnlimited(false);
+    }
+
+    /**
+     * Lift the global download limit, until the next setMaxBytesPerSecond.
+     */
+    void removeMaxBytesPerSecond() {
+        tokenBucket.setUnlimited(true);
+    }
+
+    Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Terminate the TokenBucket and join the RateLimiter, write the last metrics and unregister them from JMX.
+     */
+    void shutdown() {
+        tokenBucket.terminate();
+        Thread rateLimiterThread;
+        synchronized (this) {
+            rateLimiterThread = this.rateLimiterThread;
+        }
+        try {
+            if (rateLimiterThread != null) {
+                rateLimiterThread.join();
+            }
+            if (metricsReporter != null) {
+                metricsReporter.stop();
+                metricsReporterThread.interrupt();
+                metricsReporterThread.join();
+            }
+        } catch (InterruptedException e) {
+            LOGGER.warning("interrupted while shutting down");
+            Thread.currentThread().interrupt();
+        }
+        if (metricsName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(metricsName);
+            } catch (JMException e) {
+                LOGGER.log(Level.WARNING, "cannot unregister the metrics from JMX", e);
+            }
+        }
+    }
+
+    /**
+     * Give the output file its final size in one step, instead of growing it with every write past its end.
+     * SPARSE only sets the length, FULL also writes zeros past the current end so the filesystem allocates all the
+     * blocks now, in as few extents as it can. Both leave what was already downloaded untouched. In every mode, a
+     * file longer than fileSize (e.g. an older, bigger version of the remote file) is cut to fileSize.
+     */
+    static void preallocate(String filename, long fileSize, DownloadConfig.Preallocation preallocation)
+            throws IOException {
+        File existing = new File(filename);
+        if (preallocation == DownloadConfig.Preallocation.NONE && existing.length() <= fileSize) {
+            return;
+        }
+        try (RandomAccessFile file = new RandomAccessFile(existing, "rw")) {
+            long length = file.length();
+            if (length > fileSize) {
+                file.setLength(fileSize);
+                return;
+            }
+            if (length == fileSize || preallocation == DownloadConfig.Preallocation.NONE) {
+                return;
+            }
+            if (preallocation == DownloadConfig.Preallocation.SPARSE) {
+                file.setLength(fileSize);
+                return;
+            }
+            FileChannel channel = file.getChannel();
+            ByteBuffer zeros = ByteBuffer.allocateDirect(PREALLOCATE_BUFFER_SIZE);
+            for (long offset = length; offset < fileSize; ) {
+                zeros.clear();
+                zeros.limit((int) Math.min(zeros.capacity(), fileSize - offset));
+                offset += channel.write(zeros, offset);
+            }
+            channel.force(false);
+        }
+    }
+}
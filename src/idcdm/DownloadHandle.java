@@ -0,0 +1,193 @@
+package idcdm;
+
+import java.io.InterruptedIOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+
+/**
+ * A download in progress, as returned by DownloadManager.download().
+ *
+ * The future completes with true when the file is downloaded (and verified), false when it failed, and is
+ * cancelled when the download was. Pausing aborts the requests in flight and puts their
+ * ranges back in the scheduler; resuming continues from there on fresh connections. A cancelled download keeps its
+ * metadata, so downloading the same URL again later resumes it.
+ *
+ * The engine drives the handle through its package-private methods: every HTTPRangeGetter waits in awaitRunning()
+ * before each request, and every download pass registers its getters, scheduler, connection budget and controller
+ * so the handle can reach them. A streamed download also has a DownloadStream.
+ */
+public class DownloadHandle {
+    private final String url;
+    private final ProgressListener listener;
+    private final DownloadStream stream;
+    private final CompletableFuture<Boolean> future = new CompletableFuture<>();
+    private volatile boolean paused;
+    private volatile boolean cancelled;
+    private volatile long bytesDownloaded;
+    private volatile long fileSize = -1;
+    // 0 until set with setConnections()
+    private int connections;
+    private List<HTTPRangeGetter> getters;
+    private RangeScheduler scheduler;
+    private ConnectionBudget budget;
+    private ConnectionController controller;
+
+    DownloadHandle(String url, ProgressListener listener) {
+        this(url, listener, false);
+    }
+
+    DownloadHandle(String url, ProgressListener listener, boolean streamed) {
+        this.url = url;
+        this.listener = listener;
+        this.stream = streamed ? new DownloadStream(this) : null;
+        // cancelling the future cancels the download
+        future.whenComplete(new BiConsumer<Boolean, Throwable>() {
+            @Override
+            public void accept(Boolean succeeded, Throwable e) {
+                if (future.isCancelled()) {
+                    cancel();
+                }
+            }
+        });
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public CompletableFuture<Boolean> getFuture() {
+        return future;
+    }
+
+    /**
+     * @return the stream of a download started with DownloadManager.stream(), null otherwise
+     */
+    public DownloadStream getStream() {
+        return stream;
+    }
+
+    public long getBytesDownloaded() {
+        return bytesDownloaded;
+    }
+
+    /**
+     * @return the size of the file, or -1 before the server was asked
+     */
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    public boolean isPaused() {
+        return paused;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public void pause() {
+        synchronized (this) {
+            paused = true;
+        }
+        abortRequests();
+    }
+
+    public synchronized void resume() {
+        paused = false;
+        notifyAll();
+    }
+
+    public void cancel() {
+        RangeScheduler current;
+        synchronized (this) {
+            cancelled = true;
+            notifyAll();
+            current = scheduler;
+        }
+        // wake the getters of a streamed download waiting for the reader, and the reader
+        if (current != null) {
+            current.close();
+        }
+        if (stream != null) {
+            stream.cancelled();
+        }
+        abortRequests();
+    }
+
+    private void abortRequests() {
+        List<HTTPRangeGetter> running;
+        synchronized (this) {
+            running = getters;
+        }
+        if (running != null) {
+            for (HTTPRangeGetter getter : running) {
+                getter.cancel();
+            }
+        }
+    }
+
+    /**
+     * Change the number of requests in flight, from 1 up to the number of connections of the engine's
+     * configuration. This turns off the automatic tuning of an auto download.
+     */
+    public synchronized void setConnections(int connections) {
+        this.connections = Math.max(connections, 1);
+        if (controller != null) {
+            controller.stop();
+            controller = null;
+        }
+        if (budget != null) {
+            budget.setMaxConnections(Math.min(this.connections, getters.size()));
+        }
+    }
+
+    /**
+     * @return the number of connections set with setConnections(), or 0 if it was not called
+     */
+    synchronized int getConnections() {
+        return connections;
+    }
+
+    /**
+     * Called by the engine when a download pass starts running its getters, and with nulls when it ends.
+     */
+    synchronized void attach(List<HTTPRangeGetter> getters, RangeScheduler scheduler, ConnectionBudget budget,
+                             ConnectionController controller) {
+        this.getters = getters;
+        this.scheduler = scheduler;
+        this.budget = budget;
+        this.controller = controller;
+    }
+
+    /**
+     * Block while the download is paused.
+     *
+     * @return false if the download was cancelled
+     */
+    synchronized boolean awaitRunning() throws InterruptedIOException {
+        while (paused && !cancelled) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("interrupted while paused");
+            }
+        }
+        return !cancelled;
+    }
+
+    /**
+     * @return true if requests in flight are being aborted on purpose, so their failure is not an error
+     */
+    boolean isStopping() {
+        return paused || cancelled;
+    }
+
+    void progress(long bytesDownloaded, long fileSize) {
+        this.bytesDownloaded = bytesDownloaded;
+        this.fileSize = fileSize;
+        if (listener != null) {
+            listener.progress(bytesDownloaded, fileSize);
+        }
+    }
+}
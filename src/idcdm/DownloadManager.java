@@ -0,0 +1,350 @@
+package idcdm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The downloader as a library: one DownloadEngine shared by any number of concurrent downloads in the JVM, each
+ * controlled through a DownloadHandle.
+ *
+ *   DownloadManager manager = DownloadManager.builder().autoConnections(1, 16).memoryMapped(true).build();
+ *   DownloadHandle handle = manager.download("http://example.com/file.iso", (done, size) -> ...);
+ *   handle.getFuture().thenAccept(...);
+ *   manager.setMaxBytesPerSecond(10 * 1024 * 1024);
+ *
+ *   try (DownloadStream stream = manager.stream("http://example.com/archive.tar")) {
+ *       // read the file while it downloads
+ *   }
+ *
+ * Up to parallelFiles downloads run at a time, the others wait for their turn. The Builder has the options of the
+ * command line which make sense for a library, with the same defaults. The global rate limit can be set, changed
+ * or removed at any time; while there is none the connections skip the token bucket.
+ *
+ * The manager does not print anything. Retries, dropped sources, corrupt blocks and failures are logged through
+ * java.util.logging under the "IdcDm" logger, the details at FINE; set its level to Level.OFF to silence them.
+ */
+public class DownloadManager implements AutoCloseable {
+    private final DownloadConfig config;
+    private final DownloadEngine engine;
+    private final ExecutorService downloads;
+    private final List<DownloadHandle> handles = new CopyOnWriteArrayList<>();
+    private volatile int connections;
+    private final AtomicBoolean engineShutdown = new AtomicBoolean();
+
+    DownloadManager(DownloadConfig config) {
+        this.config = config;
+        this.engine = new DownloadEngine(config);
+        // platform threads even in virtual mode, a virtual thread per task would run all the downloads at once
+        this.downloads = Executors.newFixedThreadPool(config.parallelFiles);
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public DownloadHandle download(String url) {
+        return download(url, Collections.<String>emptyList(), null);
+    }
+
+    public DownloadHandle download(String url, ProgressListener listener) {
+        return download(url, Collections.<String>emptyList(), listener);
+    }
+
+    /**
+     * Start downloading url, and its mirrors, into the working directory. After close(), the future of the returned
+     * handle fails with a RejectedExecutionException.
+     *
+     * @param listener told about the progress, may be null
+     */
+    public DownloadHandle download(String url, List<String> mirrors, ProgressListener listener) {
+        return start(url, mirrors, new DownloadHandle(url, listener));
+    }
+
+    public DownloadStream stream(String url) {
+        return stream(url, Collections.<String>emptyList(), null);
+    }
+
+    /**
+     * Start downloading url, and its mirrors, into the working directory, and read it in order while it downloads.
+     * The download stays at most --stream-window bytes ahead of the reader (64M by default).
+     *
+     * @param listener told about the progress, may be null
+     */
+    public DownloadStream stream(String url, List<String> mirrors, ProgressListener listener) {
+        return start(url, mirrors, new DownloadHandle(url, listener, true)).getStream();
+    }
+
+    private DownloadHandle start(final String url, List<String> mirrors, final DownloadHandle handle) {
+        final List<String> urlMirrors = new ArrayList<>(mirrors);
+        int current = connections;
+        if (current > 0) {
+            handle.setConnections(current);
+        }
+        handles.add(handle);
+        try {
+            downloads.execute(new Runnable() {
+                @Override
+                public void run() {
+                    boolean succeeded = false;
+                    try {
+                        succeeded = !handle.isCancelled() && engine.download(url, urlMirrors, handle);
+                        if (handle.isCancelled()) {
+                            handle.getFuture().cancel(false);
+                        } else {
+                            handle.getFuture().complete(succeeded);
+                        }
+                    } catch (RuntimeException e) {
+                        handle.getFuture().completeExceptionally(e);
+                    } finally {
+                        handles.remove(handle);
+                        // the engine ends the stream only if it ran, not if the download was cancelled while queued
+                        if (handle.getStream() != null) {
+                            handle.getStream().finish(succeeded);
+                        }
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // the manager is closed, the download never runs
+            handles.remove(handle);
+            if (handle.getStream() != null) {
+                handle.getStream().finish(false);
+            }
+            handle.getFuture().completeExceptionally(e);
+        }
+        return handle;
+    }
+
+    /**
+     * Change the limit of all the downloads together, 0 or less to remove it.
+     */
+    public void setMaxBytesPerSecond(long maxBytesPerSecond) {
+        if (maxBytesPerSecond > 0) {
+            engine.setMaxBytesPerSecond(maxBytesPerSecond);
+        } else {
+            engine.removeMaxBytesPerSecond();
+        }
+    }
+
+    /**
+     * Change the number of connections of every running and future download, see DownloadHandle.setConnections().
+     */
+    public void setConnections(int connections) {
+        this.connections = connections;
+        for (DownloadHandle handle : handles) {
+            handle.setConnections(connections);
+        }
+    }
+
+    /**
+     * @return the downloads started and not finished yet
+     */
+    public List<DownloadHandle> getDownloads() {
+        return new ArrayList<>(handles);
+    }
+
+    /**
+     * @return the metrics of all the downloads, also registered in JMX
+     */
+    public MetricsMXBean getMetrics() {
+        return engine.getMetrics();
+    }
+
+    /**
+     * Cancel the running downloads, wait for them to stop and release the engine. If the thread is interrupted while
+     * waiting, close() returns with the interrupt flag set and the downloads still stopping. Closing again is
+     * harmless.
+     */
+    @Override
+    public void close() {
+        downloads.shutdown();
+        for (DownloadHandle handle : handles) {
+            handle.cancel();
+        }
+        try {
+            downloads.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        if (engineShutdown.compareAndSet(false, true)) {
+            engine.shutdown();
+        }
+    }
+
+    /**
+     * Configures a DownloadManager. Every setter throws an IllegalArgumentException for a value the command line
+     * would reject; sizes are in bytes and rates in bytes per second. A builder builds a single manager.
+     */
+    public static class Builder {
+        private DownloadConfig config = new DownloadConfig();
+
+        Builder() {
+        }
+
+        private DownloadConfig config() {
+            if (config == null) {
+                throw new IllegalStateException("the manager is already built");
+            }
+            return config;
+        }
+
+        /**
+         * The connections of every download, 1 by default.
+         */
+        public Builder connections(int connections) {
+            config().numberOfWorkers = DownloadConfig.positiveInt("connections", connections);
+            return this;
+        }
+
+        /**
+         * Let the engine tune the connections of every download within [min, max].
+         */
+        public Builder autoConnections(int min, int max) {
+            config().setAutoConnections(min, max);
+            return this;
+        }
+
+        /**
+         * The initial global limit, none by default. It may be changed later with setMaxBytesPerSecond().
+         */
+        public Builder maxBytesPerSecond(long maxBytesPerSecond) {
+            config().maxBytesPerSecond = DownloadConfig.positive("maxBytesPerSecond", maxBytesPerSecond);
+            return this;
+        }
+
+        /**
+         * The limit of every connection, under the global one.
+         */
+        public Builder maxBytesPerSecondPerConnection(long maxBytesPerSecond) {
+            config().maxBytesPerSecondPerConnection =
+                    DownloadConfig.positive("maxBytesPerSecondPerConnection", maxBytesPerSecond);
+            return this;
+        }
+
+        /**
+         * The downloads running at a time, 4 by default.
+         */
+        public Builder parallelFiles(int parallelFiles) {
+            config().parallelFiles = DownloadConfig.positiveInt("parallelFiles", parallelFiles);
+            return this;
+        }
+
+        /**
+         * The requests in flight of all the downloads together, and to the same host.
+         */
+        public Builder maxConnections(int maxConnections, int maxConnectionsPerHost) {
+            config().maxConnections = DownloadConfig.positiveInt("maxConnections", maxConnections);
+            config().maxConnectionsPerHost = DownloadConfig.positiveInt("maxConnectionsPerHost", maxConnectionsPerHost);
+            return this;
+        }
+
+        public Builder readSize(int readSize) {
+            config().readSize = DownloadConfig.positiveInt("readSize", readSize);
+            return this;
+        }
+
+        public Builder chunkSize(int chunkSize) {
+            config().chunkSize = DownloadConfig.positiveInt("chunkSize", chunkSize);
+            return this;
+        }
+
+        /**
+         * Grow the chunk size of every connection with its throughput, within [min, max].
+         */
+        public Builder adaptiveChunkSize(int min, int max) {
+            DownloadConfig config = config();
+            config.minChunkSize = DownloadConfig.positiveInt("minChunkSize", min);
+            config.maxChunkSize = DownloadConfig.positiveInt("maxChunkSize", max);
+            if (min > max) {
+                throw new IllegalArgumentException("bad chunk size bounds: " + min + "-" + max);
+            }
+            config.adaptiveChunkSize = true;
+            return this;
+        }
+
+        /**
+         * Fetch up to count small missing ranges per request, 1 for a range per request (the default).
+         */
+        public Builder multiRange(int count) {
+            config().multiRangeCount = DownloadConfig.positiveInt("multiRange", count);
+            return this;
+        }
+
+        /**
+         * The memory of the chunks in flight, 64M by default.
+         */
+        public Builder bufferMemory(long bytes) {
+            config().poolBytes = DownloadConfig.positive("bufferMemory", bytes);
+            return this;
+        }
+
+        /**
+         * The threads writing every file, 1 by default.
+         */
+        public Builder writers(int writers) {
+            config().writerThreads = DownloadConfig.positiveInt("writers", writers);
+            return this;
+        }
+
+        public Builder memoryMapped(boolean memoryMapped) {
+            config().memoryMapped = memoryMapped;
+            return this;
+        }
+
+        /**
+         * Run the connections and the writers on virtual threads where the JVM has them.
+         */
+        public Builder virtualThreads(boolean virtualThreads) {
+            config().virtualThreads = virtualThreads;
+            return this;
+        }
+
+        /**
+         * How far ahead of its reader a stream() download may go, 64M by default.
+         */
+        public Builder streamWindow(long bytes) {
+            config().streamWindowBytes = DownloadConfig.positive("streamWindow", bytes);
+            return this;
+        }
+
+        /**
+         * The failed requests in a row after which a connection gives up, 8 by default.
+         */
+        public Builder retries(int retries) {
+            config().maxRetries = DownloadConfig.positiveInt("retries", retries);
+            return this;
+        }
+
+        /**
+         * Copy known blocks from directory instead of downloading them, and keep up to bytes of new ones there.
+         */
+        public Builder cache(String directory, long bytes) {
+            config().cacheDirectory = directory;
+            config().cacheBytes = DownloadConfig.positive("cacheBytes", bytes);
+            return this;
+        }
+
+        /**
+         * Append the metrics to file as JSON lines every intervalMillis.
+         */
+        public Builder metrics(String file, long intervalMillis) {
+            config().metricsFile = file;
+            config().metricsIntervalMillis = DownloadConfig.positive("metricsInterval", intervalMillis);
+            return this;
+        }
+
+        public DownloadManager build() {
+            DownloadManager manager = new DownloadManager(config());
+            config = null;
+            return manager;
+        }
+    }
+}
@@ -0,0 +1,235 @@
+package idcdm;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The file of a download as an InputStream, read in order from the start while the download is still running, as
+ * returned by DownloadManager.stream(). Channels.newChannel() turns it into a ReadableByteChannel.
+ *
+ * The bytes are read back from the output file as soon as they are written to it, before the group commit, or
+ * with a block manifest as soon as their block is verified. The ranges written out of order are kept until the gap
+ * before them is filled. A corrupt block is downloaded again in the same pass rather than the next one, since the
+ * pass cannot end before the reader gets past the block. The RangeScheduler follows the read position: the
+ * HTTPRangeGetters download at most a reorder window ahead of it, nearest ranges first, so a slow reader slows the
+ * download down rather than the download running away from it.
+ *
+ * A read blocks until the next byte is there, and fails if the download failed or was cancelled first. Closing
+ * the stream before its end cancels the download, which keeps its metadata so it can be resumed.
+ */
+public class DownloadStream extends InputStream {
+    private final DownloadHandle handle;
+    private String filename;
+    // -1 until the size is known
+    private long fileSize = -1;
+    private FileChannel channel;
+    private long position;
+    // the bytes before readableEnd can be read, the ranges after it are waiting for a gap to be filled
+    private long readableEnd;
+    private final TreeMap<Long, Long> ahead = new TreeMap<>();
+    private long window;
+    private RangeScheduler scheduler;
+    // corrupt blocks found between two passes
+    private final List<Range> corrupt = new ArrayList<>();
+    private boolean finished;
+    private boolean closed;
+
+    DownloadStream(DownloadHandle handle) {
+        this.handle = handle;
+    }
+
+    public DownloadHandle getHandle() {
+        return handle;
+    }
+
+    /**
+     * Called by the engine once the output file and its size are known, with the reorder window to use.
+     */
+    synchronized void open(String filename, long fileSize, long window) {
+        this.filename = filename;
+        this.fileSize = fileSize;
+        this.window = window;
+        notifyAll();
+    }
+
+    /**
+     * Called by the engine when a download pass starts with its scheduler, and with null when it ends.
+     */
+    void attach(RangeScheduler scheduler) {
+        long current;
+        List<Range> found;
+        synchronized (this) {
+            this.scheduler = scheduler;
+            current = position;
+            found = new ArrayList<>(corrupt);
+            if (scheduler != null) {
+                corrupt.clear();
+            }
+        }
+        if (scheduler != null) {
+            scheduler.advance(current);
+            scheduler.setWindow(window);
+            for (Range range : found) {
+                scheduler.add(range);
+            }
+        }
+    }
+
+    /**
+     * Called by the verifier when [start, end] was corrupt and removed from the metadata.
+     */
+    void corrupt(long start, long end) {
+        RangeScheduler current;
+        synchronized (this) {
+            current = scheduler;
+            if (current == null) {
+                corrupt.add(new Range(start, end));
+            }
+        }
+        if (current != null) {
+            current.add(new Range(start, end));
+        }
+    }
+
+    /**
+     * Called when [start, end] is in the output file and may be read.
+     */
+    synchronized void readable(long start, long end) {
+        if (end < readableEnd) {
+            return;
+        }
+        Long previous = ahead.get(start);
+        ahead.put(start, previous == null ? end : Math.max(end, previous));
+        Map.Entry<Long, Long> first;
+        while ((first = ahead.firstEntry()) != null && first.getKey() <= readableEnd) {
+            ahead.pollFirstEntry();
+            readableEnd = Math.max(readableEnd, first.getValue() + 1);
+        }
+        notifyAll();
+    }
+
+    /**
+     * Called by the engine when the download ended.
+     */
+    synchronized void finish(boolean succeeded) {
+        this.finished = true;
+        if (succeeded) {
+            // the whole file is on disk, and verified if it had to be
+            readableEnd = fileSize;
+            ahead.clear();
+        }
+        notifyAll();
+    }
+
+    /**
+     * Called by the handle when the download is cancelled, reads past what was downloaded fail from now on.
+     */
+    synchronized void cancelled() {
+        notifyAll();
+    }
+
+    /**
+     * Block until there is something to read.
+     *
+     * @return the number of bytes which can be read from the position, or -1 at the end of the file
+     */
+    private synchronized long awaitAvailable() throws IOException {
+        while (readableEnd <= position) {
+            if (closed) {
+                throw new IOException("stream closed");
+            }
+            if (fileSize >= 0 && position >= fileSize) {
+                return -1;
+            }
+            if (handle.isCancelled()) {
+                throw new IOException(handle.getUrl() + ": download cancelled");
+            }
+            if (finished) {
+                throw new IOException(handle.getUrl() + ": download failed");
+            }
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("interrupted while waiting for the download");
+            }
+        }
+        if (channel == null) {
+            channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ);
+        }
+        return readableEnd - position;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] single = new byte[1];
+        return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        long readable = awaitAvailable();
+        if (readable < 0) {
+            return -1;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, (int) Math.min(length, readable));
+        int read = channel.read(buffer, position);
+        if (read < 0) {
+            throw new IOException("unexpected end of file at " + position);
+        }
+        RangeScheduler current;
+        synchronized (this) {
+            position += read;
+            current = scheduler;
+        }
+        if (current != null) {
+            current.advance(position);
+        }
+        return read;
+    }
+
+    @Override
+    public synchronized int available() {
+        return (int) Math.min(readableEnd - position, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @return the number of bytes read so far
+     */
+    public synchronized long getPosition() {
+        return position;
+    }
+
+    @Override
+    public void close() throws IOException {
+        boolean cancel;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            // the download may still be committing the end of the file the reader has already read
+            cancel = !finished && (fileSize < 0 || position < fileSize);
+            notifyAll();
+        }
+        if (cancel) {
+            handle.cancel();
+        }
+        synchronized (this) {
+            if (channel != null) {
+                channel.close();
+            }
+        }
+    }
+}
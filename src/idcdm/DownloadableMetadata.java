@@ -0,0 +1,459 @@
+package idcdm;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Describes a file's metadata: URL, file name, size, and which parts already downloaded to disk.
+ *
+ * The metadata (or at least which parts already downloaded to disk) is constantly stored safely in disk.
+ * When constructing a new metadata object, we first check the disk to load existing metadata.
+ *
+ * The downloaded parts are kept as a sorted set of merged, non overlapping ranges, so the footprint is O(number of
+ * gaps) and not O(file size). On disk the set is stored as a snapshot file plus an append-only journal of completed
+ * ranges: every sync() appends only the ranges added since the previous sync, and once the journal grows past
+ * COMPACT_THRESHOLD records it is compacted into a new snapshot.
+ *
+ * The snapshot starts with the size and validators (ETag, Last-Modified) of the remote file it belongs to, so a
+ * resume can check that the remote file did not change by reading a few bytes, before loading any range. Loading
+ * takes O(number of gaps + journal records), whatever the size of the file.
+ */
+class DownloadableMetadata implements Serializable {
+    static final int COMPACT_THRESHOLD = 4096;
+    private static final int SNAPSHOT_MAGIC = 0x49444d44; // "IDMD"
+    private static final int VERSIONED_SNAPSHOT_MAGIC = 0x49444d32; // "IDM2"
+    private static final int LEGACY_CHUNK_SIZE = 4096;
+    private static final int RECORD_SIZE = 16;
+    private static final Logger LOGGER = Logger.getLogger("IdcDm.DownloadableMetadata");
+
+    private final String metadataFilename;
+    private String filename;
+    //private String url;
+    // start -> end (inclusive) of every downloaded range, merged
+    private final TreeMap<Long, Long> completed = new TreeMap<>();
+    private final List<Range> unsynced = new ArrayList<>();
+    private transient DataOutputStream journal;
+    private transient FileOutputStream journalFile;
+    private int journalRecords;
+    long lastStart;
+    long fileSize;
+    long bytesRead;
+    private String etag;
+    private String lastModified;
+    private transient IntegrityVerifier verifier;
+    private transient ProgressListener progressListener;
+    private transient DownloadStream stream;
+
+    DownloadableMetadata(String url, long fileSize) throws IOException, ClassNotFoundException {
+        this(url, new RemoteFile(fileSize, null, null));
+    }
+
+    DownloadableMetadata(String url, RemoteFile remoteFile) throws IOException, ClassNotFoundException {
+        //this.url = url;
+        this.bytesRead = 0;
+        this.fileSize = remoteFile.size;
+        this.etag = remoteFile.etag;
+        this.lastModified = remoteFile.lastModified;
+        this.filename = getName(url);
+        this.metadataFilename = getMetadataName(filename);
+        File snapshot = getSnapshot(metadataFilename);
+        RemoteFile savedFile = null;
+        if (snapshot != null) {
+            savedFile = loadSnapshot(snapshot);
+        }
+        replayJournal(new File(getJournalName()));
+        lastStart = 0;
+        // save the validators right away, a resume after a crash needs them to check the remote file
+        if (savedFile == null || !sameVersion(savedFile, remoteFile)) {
+            compact();
+        }
+    }
+
+    private static File getSnapshot(String metadataFilename) {
+        File file = new File(metadataFilename);
+        File tmpFile = new File(metadataFilename + ".tmp");
+        if (file.exists()) {
+            return file;
+        }
+        return tmpFile.exists() ? tmpFile : null;
+    }
+
+    private static boolean sameVersion(RemoteFile a, RemoteFile b) {
+        return a.size == b.size && equal(a.etag, b.etag) && equal(a.lastModified, b.lastModified);
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    /**
+     * Read the version of the remote file saved with the metadata of url, without loading the ranges.
+     *
+     * @return the saved size and validators, or null if there is no metadata or it predates them
+     */
+    static RemoteFile loadRemoteFile(String url) throws IOException {
+        File snapshot = getSnapshot(getMetadataName(getName(url)));
+        if (snapshot == null) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshot)))) {
+            return in.readInt() == VERSIONED_SNAPSHOT_MAGIC ? readRemoteFile(in) : null;
+        }
+    }
+
+    private static RemoteFile readRemoteFile(DataInputStream in) throws IOException {
+        long size = in.readLong();
+        String etag = in.readUTF();
+        String lastModified = in.readUTF();
+        return new RemoteFile(size, etag.isEmpty() ? null : etag, lastModified.isEmpty() ? null : lastModified);
+    }
+
+    private static String getMetadataName(String filename) {
+        return filename + ".metadata";
+    }
+
+    /**
+     * @return the name of the output file of url, its last path segment
+     */
+    static String getName(String path) {
+        return path.substring(path.lastIndexOf('/') + 1, path.length());
+    }
+
+    private String getJournalName() {
+        return metadataFilename + ".journal";
+    }
+
+    /**
+     * @return the remote file saved in the snapshot, or null if the snapshot predates it
+     */
+    private RemoteFile loadSnapshot(File file) throws IOException, ClassNotFoundException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            in.mark(4);
+            int magic = in.readInt();
+            RemoteFile savedFile = null;
+            if (magic == VERSIONED_SNAPSHOT_MAGIC) {
+                savedFile = readRemoteFile(in);
+            } else if (magic != SNAPSHOT_MAGIC) {
+                in.reset();
+                loadLegacySnapshot(in);
+                return null;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                merge(in.readLong(), in.readLong());
+            }
+            return savedFile;
+        }
+    }
+
+    /**
+     * Older versions stored a serialized boolean[] with one entry per 4096 bytes chunk.
+     */
+    private void loadLegacySnapshot(InputStream in) throws IOException, ClassNotFoundException {
+        boolean[] chunkArray = (boolean[]) new ObjectInputStream(in).readObject();
+        for (int i = 0; i < chunkArray.length; i++) {
+            if (chunkArray[i]) {
+                long start = (long) i * LEGACY_CHUNK_SIZE;
+                merge(start, Math.min(start + LEGACY_CHUNK_SIZE, fileSize) - 1);
+            }
+        }
+    }
+
+    private void replayJournal(File file) throws IOException {
+        if (!file.exists()) {
+            return;
+        }
+        // a crash may leave a partially written record at the tail, it is ignored and cut off so the next records
+        // are appended at a record boundary
+        long records = file.length() / RECORD_SIZE;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            for (long i = 0; i < records; i++) {
+                merge(in.readLong(), in.readLong());
+            }
+        }
+        if (file.length() != records * RECORD_SIZE) {
+            try (RandomAccessFile journalFile = new RandomAccessFile(file, "rw")) {
+                journalFile.setLength(records * RECORD_SIZE);
+                journalFile.getFD().sync();
+            }
+        }
+        journalRecords = (int) records;
+    }
+
+    /**
+     * Add [start, end] to the completed set, merging it with overlapping or adjacent ranges.
+     *
+     * @return the number of bytes which were not already marked as completed
+     */
+    private long merge(long start, long end) {
+        long added = end - start + 1;
+        Map.Entry<Long, Long> before = completed.floorEntry(start);
+        if (before != null && before.getValue() >= start - 1) {
+            if (before.getValue() >= end) {
+                return 0;
+            }
+            added -= before.getValue() - start + 1;
+            start = before.getKey();
+            completed.remove(before.getKey());
+        }
+        Map.Entry<Long, Long> after = completed.ceilingEntry(start);
+        while (after != null && after.getKey() <= end + 1) {
+            added -= Math.min(after.getValue(), end) - after.getKey() + 1;
+            end = Math.max(end, after.getValue());
+            completed.remove(after.getKey());
+            after = completed.ceilingEntry(start);
+        }
+        completed.put(start, end);
+        bytesRead += added;
+        return added;
+    }
+
+    synchronized void addRange(Range range) {
+        if (merge(range.getStart(), range.getEnd()) == 0) {
+            return;
+        }
+        Range last = unsynced.isEmpty() ? null : unsynced.get(unsynced.size() - 1);
+        if (last != null && last.getEnd() + 1 == range.getStart()) {
+            unsynced.set(unsynced.size() - 1, new Range(last.getStart(), range.getEnd()));
+        } else {
+            unsynced.add(range);
+        }
+        if (progressListener != null) {
+            progressListener.progress(bytesRead, fileSize);
+        }
+        if (verifier != null) {
+            verifier.committed(range);
+        }
+    }
+
+    /**
+     * Forget that [start, end] was downloaded, e.g. because it failed verification. This is rare, so the metadata is
+     * simply compacted into a new snapshot without the range.
+     */
+    synchronized void removeRange(Range range) throws IOException {
+        long start = range.getStart();
+        long end = range.getEnd();
+        Map.Entry<Long, Long> entry = completed.floorEntry(start);
+        if (entry == null || entry.getValue() < start) {
+            entry = completed.higherEntry(start);
+        }
+        while (entry != null && entry.getKey() <= end) {
+            long entryStart = entry.getKey();
+            long entryEnd = entry.getValue();
+            completed.remove(entryStart);
+            if (entryStart < start) {
+                completed.put(entryStart, start - 1);
+            }
+            if (entryEnd > end) {
+                completed.put(end + 1, entryEnd);
+            }
+            bytesRead -= Math.min(entryEnd, end) - Math.max(entryStart, start) + 1;
+            entry = completed.higherEntry(entryStart);
+        }
+        if (progressListener != null) {
+            progressListener.progress(bytesRead, fileSize);
+        }
+        compact();
+    }
+
+    synchronized void setProgressListener(ProgressListener progressListener) {
+        this.progressListener = progressListener;
+        if (progressListener != null) {
+            progressListener.progress(bytesRead, fileSize);
+        }
+    }
+
+    void setVerifier(IntegrityVerifier verifier) {
+        this.verifier = verifier;
+    }
+
+    /**
+     * Let stream read the bytes of the file as soon as they are written, before they are committed.
+     */
+    void setStream(DownloadStream stream) {
+        this.stream = stream;
+    }
+
+    /**
+     * Called by the writers when [start, end] was written to the file, and is about to be committed.
+     */
+    void written(long start, long end) {
+        if (stream != null) {
+            stream.readable(start, end);
+        }
+    }
+
+    /**
+     * Durably append every range added since the last sync to the journal, compacting it into a snapshot when it
+     * grows too large.
+     */
+    synchronized void sync() throws IOException {
+        if (unsynced.isEmpty()) {
+            return;
+        }
+        if (journalRecords + unsynced.size() > COMPACT_THRESHOLD) {
+            compact();
+            return;
+        }
+        if (journal == null) {
+            journalFile = new FileOutputStream(getJournalName(), true);
+            journal = new DataOutputStream(new BufferedOutputStream(journalFile));
+        }
+        for (Range range : unsynced) {
+            journal.writeLong(range.getStart());
+            journal.writeLong(range.getEnd());
+        }
+        journal.flush();
+        journalFile.getFD().sync();
+        journalRecords += unsynced.size();
+        unsynced.clear();
+    }
+
+    /**
+     * Write the whole completed set to a new snapshot and truncate the journal.
+     */
+    private void compact() throws IOException {
+        File metaFile = new File(metadataFilename);
+        File tmpFile = new File(metadataFilename + ".tmp");
+        try (FileOutputStream tempMetadata = new FileOutputStream(tmpFile);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(tempMetadata))) {
+            out.writeInt(VERSIONED_SNAPSHOT_MAGIC);
+            out.writeLong(fileSize);
+            out.writeUTF(etag != null ? etag : "");
+            out.writeUTF(lastModified != null ? lastModified : "");
+            out.writeInt(completed.size());
+            for (Map.Entry<Long, Long> entry : completed.entrySet()) {
+                out.writeLong(entry.getKey());
+                out.writeLong(entry.getValue());
+            }
+            out.flush();
+            tempMetadata.getFD().sync();
+        }
+        if (metaFile.exists()) {
+            metaFile.delete();
+        }
+        tmpFile.renameTo(metaFile);
+        closeJournal();
+        new FileOutputStream(getJournalName()).close();
+        journalRecords = 0;
+        unsynced.clear();
+    }
+
+    private void closeJournal() throws IOException {
+        if (journal != null) {
+            journal.close();
+            journal = null;
+            journalFile = null;
+        }
+    }
+
+    String getFilename() {
+        return filename;
+    }
+
+    String getMetadataFilename() {
+        return metadataFilename;
+    }
+
+    synchronized boolean isCompleted() {
+        return bytesRead == fileSize;
+    }
+
+    synchronized void delete() {
+        try {
+            closeJournal();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "cannot close the journal of " + filename, e);
+        }
+        deleteFiles(metadataFilename);
+    }
+
+    private static void deleteFiles(String metadataFilename) {
+        File file = new File(metadataFilename);
+        File tmpFile = new File(metadataFilename + ".tmp");
+        File journalFile = new File(metadataFilename + ".journal");
+        file.delete();
+        tmpFile.delete();
+        journalFile.delete();
+    }
+
+    /**
+     * Delete the metadata of url and what was downloaded of it, e.g. because the remote file changed.
+     */
+    static void discard(String url) {
+        String filename = getName(url);
+        deleteFiles(getMetadataName(filename));
+        new File(filename).delete();
+    }
+
+    /**
+     * @return true if all of [start, end] was downloaded
+     */
+    synchronized boolean isCompleted(long start, long end) {
+        Map.Entry<Long, Long> entry = completed.floorEntry(start);
+        return entry != null && entry.getValue() >= end;
+    }
+
+    /**
+     * @return the number of bytes downloaded from the beginning of the file without a gap
+     */
+    synchronized long getCompletedPrefix() {
+        Long end = completed.get(0L);
+        return end == null ? 0 : end + 1;
+    }
+
+    synchronized List<Range> getCompletedRanges() {
+        List<Range> completedRanges = new ArrayList<>();
+        for (Map.Entry<Long, Long> entry : completed.entrySet()) {
+            completedRanges.add(new Range(entry.getKey(), entry.getValue()));
+        }
+        return completedRanges;
+    }
+
+    /**
+     * Return the next missing range after the previously returned one, or null if there are no more gaps.
+     */
+    synchronized Range getMissingRange() {
+        if (lastStart >= fileSize) {
+            return null;
+        }
+        long start = lastStart;
+        Map.Entry<Long, Long> before = completed.floorEntry(start);
+        if (before != null && before.getValue() >= start) {
+            start = before.getValue() + 1;
+        }
+        if (start >= fileSize) {
+            lastStart = fileSize;
+            return null;
+        }
+        Long next = completed.higherKey(start);
+        long end = next == null ? fileSize - 1 : next - 1;
+        lastStart = end + 1;
+        return new Range(start, end);
+    }
+    /**
+     * @return all the missing ranges of the file, sorted by their start
+     */
+    synchronized List<Range> getMissingRanges() {
+        List<Range> missingRanges = new ArrayList<>();
+        long start = 0;
+        for (Map.Entry<Long, Long> entry : completed.entrySet()) {
+            if (entry.getKey() > start) {
+                missingRanges.add(new Range(start, entry.getKey() - 1));
+            }
+            start = entry.getValue() + 1;
+        }
+        if (start < fileSize) {
+            missingRanges.add(new Range(start, fileSize - 1));
+        }
+        return missingRanges;
+    }
+//    String getUrl() {
+//        return url;
+//    }
+}
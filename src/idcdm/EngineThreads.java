@@ -0,0 +1,66 @@
+package idcdm;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Creates the threads of the download engine.
+ *
+ * In virtual mode the HTTPRangeGetters and the FileWriter run on virtual threads, which park cheaply on blocking
+ * socket and file I/O, so thousands of connections do not need thousands of platform thread stacks. Virtual threads
+ * exist from Java 21 on while the project targets Java 8, so they are created reflectively; on an older JVM the
+ * engine falls back to platform threads. The files of a batch or a DownloadManager always run on a fixed pool of
+ * platform threads, which bounds how many download at a time.
+ */
+class EngineThreads {
+    private static final Method NEW_VIRTUAL_EXECUTOR;
+    private static final Method OF_VIRTUAL;
+    private static final Method UNSTARTED;
+
+    static {
+        Method newVirtualExecutor = null;
+        Method ofVirtual = null;
+        Method unstarted = null;
+        try {
+            newVirtualExecutor = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            unstarted = Class.forName("java.lang.Thread$Builder").getMethod("unstarted", Runnable.class);
+        } catch (ReflectiveOperationException e) {
+            newVirtualExecutor = null;
+        }
+        NEW_VIRTUAL_EXECUTOR = newVirtualExecutor;
+        OF_VIRTUAL = ofVirtual;
+        UNSTARTED = unstarted;
+    }
+
+    static boolean virtualThreadsSupported() {
+        return NEW_VIRTUAL_EXECUTOR != null;
+    }
+
+    /**
+     * @return an executor running every task on its own virtual thread, or a fixed pool of numberOfThreads platform
+     *         threads
+     */
+    static ExecutorService newWorkerPool(int numberOfThreads, boolean virtual) {
+        if (virtual && virtualThreadsSupported()) {
+            try {
+                return (ExecutorService) NEW_VIRTUAL_EXECUTOR.invoke(null);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException("cannot create virtual threads", e);
+            }
+        }
+        return Executors.newFixedThreadPool(numberOfThreads);
+    }
+
+    static Thread newThread(Runnable runnable, boolean virtual) {
+        if (virtual && virtualThreadsSupported()) {
+            try {
+                return (Thread) UNSTARTED.invoke(OF_VIRTUAL.invoke(null), runnable);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException("cannot create virtual threads", e);
+            }
+        }
+        return new Thread(runnable);
+    }
+}
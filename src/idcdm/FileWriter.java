@@ -0,0 +1,243 @@
+package idcdm;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * This class takes chunks from the queue, writes them to disk and updates the file's metadata.
+ *
+ * The output file is opened once. Chunks already waiting in the queue are taken together, sorted, and every run
+ * of adjacent chunks is written with one gathering write, other chunks with a positional write. Durability is
+ * batched into group commits: after syncBytes bytes or syncIntervalMillis milliseconds (whichever comes first) the
+ * file is forced to the storage device, and only then are the written ranges marked as downloaded in the metadata.
+ * A range is therefore never recorded in the metadata before its bytes are durable. A streamed download may read
+ * it earlier, every run being reported to DownloadableMetadata.written() as soon as it is written.
+ *
+ * The writer blocks on the queue while there is nothing to do, and stops when it takes the FINISH_MARKER, which is
+ * put after the last chunk, so every chunk before it is written and committed.
+ *
+ * Several writers may write the same file, each with its own queue and channel; see WriteStage.
+ */
+public class FileWriter implements Runnable {
+    static final long DEFAULT_SYNC_BYTES = 8 * 1024 * 1024;
+    static final long DEFAULT_SYNC_INTERVAL_MILLIS = 1000;
+    /**
+     * Put in the queue after the last chunk: the writer commits everything before it and exits.
+     */
+    static final Chunk FINISH_MARKER = new Chunk(ByteBuffer.allocate(0));
+    static final int MAX_BATCH = 64;
+    private static final Logger LOGGER = Logger.getLogger("IdcDm.FileWriter");
+    private static final Comparator<Chunk> BY_OFFSET = new Comparator<Chunk>() {
+        @Override
+        public int compare(Chunk a, Chunk b) {
+            return Long.compare(a.getOffset(), b.getOffset());
+        }
+    };
+
+    private final BlockingQueue<Chunk> chunkQueue;
+    private final ChunkPool chunkPool;
+    private DownloadableMetadata downloadableMetadata;
+    private final long syncBytes;
+    private final long syncIntervalMillis;
+    private final List<Range> pendingRanges = new ArrayList<>();
+    private long pendingBytes;
+    private long pendingStart = -1;
+    private long pendingEnd;
+    private long lastSync;
+    // set once the FINISH_MARKER was taken, so a failure after it does not wait for it again
+    private boolean markerTaken;
+    private final List<Chunk> batch = new ArrayList<>(MAX_BATCH);
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_BATCH];
+    private final Metrics metrics;
+
+    FileWriter(DownloadableMetadata downloadableMetadata, BlockingQueue<Chunk> chunkQueue, ChunkPool chunkPool,
+               Metrics metrics) {
+        this(downloadableMetadata, chunkQueue, chunkPool, DEFAULT_SYNC_BYTES, DEFAULT_SYNC_INTERVAL_MILLIS, metrics);
+    }
+
+    FileWriter(DownloadableMetadata downloadableMetadata, BlockingQueue<Chunk> chunkQueue, ChunkPool chunkPool,
+               long syncBytes, long syncIntervalMillis, Metrics metrics) {
+        this.metrics = metrics;
+        this.chunkQueue = chunkQueue;
+        this.chunkPool = chunkPool;
+        this.downloadableMetadata = downloadableMetadata;
+        this.syncBytes = syncBytes;
+        this.syncIntervalMillis = syncIntervalMillis;
+    }
+
+    private void writeChunks() throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(downloadableMetadata.getFilename()),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            lastSync = System.currentTimeMillis();
+            while (!markerTaken) {
+                Chunk chunk = nextChunk();
+                if (chunk != null) {
+                    // take whatever else is already queued and write it together
+                    batch.add(chunk);
+                    chunkQueue.drainTo(batch, MAX_BATCH - 1);
+                    // recorded before the batch is written, which may fail
+                    markerTaken = batch.remove(FINISH_MARKER);
+                    long now = System.nanoTime();
+                    for (Chunk queued : batch) {
+                        metrics.queueWait.record(now - queued.getQueuedAt());
+                    }
+                    metrics.queuedChunks.add(-batch.size());
+                    writeBatch(channel);
+                }
+                if (pendingBytes >= syncBytes || System.currentTimeMillis() - lastSync >= syncIntervalMillis) {
+                    commit(channel);
+                }
+            }
+            commit(channel);
+        }
+    }
+
+    /**
+     * Block until the next chunk arrives. While there are uncommitted writes, wait only until the next commit is
+     * due and return null if nothing arrived by then.
+     */
+    private Chunk nextChunk() {
+        try {
+            if (pendingStart < 0 && pendingRanges.isEmpty()) {
+                return chunkQueue.take();
+            }
+            long timeout = Math.max(lastSync + syncIntervalMillis - System.currentTimeMillis(), 1);
+            return chunkQueue.poll(timeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            return null;
+        }
+    }
+
+    /**
+     * After a failed write, keep taking chunks until the marker and give them back to the pool, so the getters
+     * are not blocked forever waiting for a free chunk. Nothing comes after the marker if it was already taken.
+     */
+    private void discardChunks() {
+        for (Chunk chunk : batch) {
+            chunkPool.release(chunk);
+        }
+        batch.clear();
+        while (!markerTaken) {
+            try {
+                Chunk chunk = chunkQueue.take();
+                if (chunk == FINISH_MARKER) {
+                    markerTaken = true;
+                    break;
+                }
+                metrics.queuedChunks.decrement();
+                chunkPool.release(chunk);
+            } catch (InterruptedException e) {
+                // keep draining, the marker always comes
+            }
+        }
+    }
+
+    /**
+     * Write the batch sorted by offset, with a single gathering write for every run of adjacent chunks.
+     */
+    private void writeBatch(FileChannel channel) throws IOException {
+        batch.sort(BY_OFFSET);
+        int first = 0;
+        while (first < batch.size()) {
+            long start = batch.get(first).getOffset();
+            long end = start + batch.get(first).getSize_in_bytes();
+            int last = first;
+            while (last + 1 < batch.size() && batch.get(last + 1).getOffset() == end) {
+                last++;
+                end += batch.get(last).getSize_in_bytes();
+            }
+            long writeStart = System.nanoTime();
+            if (first == last) {
+                ByteBuffer buffer = batch.get(first).getData();
+                long position = start;
+                while (buffer.hasRemaining()) {
+                    position += channel.write(buffer, position);
+                }
+            } else {
+                int count = last - first + 1;
+                for (int i = 0; i < count; i++) {
+                    gather[i] = batch.get(first + i).getData();
+                }
+                // every writer owns its channel, so its position is not shared with anyone
+                channel.position(start);
+                long remaining = end - start;
+                while (remaining > 0) {
+                    remaining -= channel.write(gather, 0, count);
+                }
+            }
+            metrics.write.record(System.nanoTime() - writeStart);
+            metrics.bytesWritten.add(end - start);
+            addPending(start, end - 1);
+            downloadableMetadata.written(start, end - 1);
+            first = last + 1;
+        }
+        for (Chunk chunk : batch) {
+            chunkPool.release(chunk);
+        }
+        batch.clear();
+    }
+
+    /**
+     * Remember a written range until the next commit, extending the last one when they are adjacent.
+     */
+    private void addPending(long start, long end) {
+        if (pendingStart >= 0 && pendingEnd + 1 == start) {
+            pendingEnd = end;
+        } else {
+            flushPending();
+            pendingStart = start;
+            pendingEnd = end;
+        }
+        pendingBytes += end - start + 1;
+    }
+
+    private void flushPending() {
+        if (pendingStart >= 0) {
+            pendingRanges.add(new Range(pendingStart, pendingEnd));
+            pendingStart = -1;
+        }
+    }
+
+    /**
+     * Group commit: make all pending writes durable, then record them in the metadata.
+     */
+    private void commit(FileChannel channel) throws IOException {
+        lastSync = System.currentTimeMillis();
+        flushPending();
+        if (pendingRanges.isEmpty()) {
+            return;
+        }
+        long forceStart = System.nanoTime();
+        channel.force(true);
+        metrics.fsync.record(System.nanoTime() - forceStart);
+        for (Range range : pendingRanges) {
+            downloadableMetadata.addRange(range);
+        }
+        pendingRanges.clear();
+        pendingBytes = 0;
+        long syncStart = System.nanoTime();
+        downloadableMetadata.sync();
+        metrics.metadataSync.record(System.nanoTime() - syncStart);
+    }
+
+    @Override
+    public void run() {
+        try {
+            this.writeChunks();
+        } catch (IOException e) {
+            // the download will be reported as failed since its metadata is incomplete
+            LOGGER.log(Level.SEVERE, "cannot write the file", e);
+            discardChunks();
+        }
+    }
+}
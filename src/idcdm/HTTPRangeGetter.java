@@ -0,0 +1,549 @@
+package idcdm;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * A runnable class which downloads a given url.
+ * It asks the RangeScheduler for ranges until there is no more work, reads a pooled chunk at a time and hands it
+ * to the WriteStage, or in mmap mode copies it straight into the MappedOutput.
+ * It supports downloading a range of data, and limiting the download rate using a token bucket.
+ *
+ * Every response is read to its end and closed rather than disconnected, so the keep-alive connection goes back
+ * to the JDK connection cache and the next Range request of this worker reuses it without a new handshake.
+ * When multi-range requests are enabled, runs of small missing ranges are fetched together in one
+ * multipart/byteranges response; servers which answer otherwise are asked for one range at a time.
+ *
+ * A failed request does not fail the download: what was not read of its ranges goes back to the scheduler, and the
+ * getter retries after an exponential backoff with jitter. A getter gives up after maxRetries failures in a row
+ * without reading anything. The ConnectionMonitor may cancel a request whose connection is much slower than the
+ * others; its ranges are put back the same way and the getter asks for new work on a fresh connection right away.
+ *
+ * Every request goes to a source picked by the SourceSelector (the URL or one of its mirrors), which is told how
+ * fast the request was or that it failed. A request holds a permit of the download's ConnectionBudget and one of
+ * the budget of its source's host. Before every request the getter waits while its DownloadHandle is
+ * paused, and stops when it is cancelled; pausing or cancelling aborts the request in flight like a slow one.
+ */
+public class HTTPRangeGetter implements Runnable {
+    static final long BASE_BACKOFF_MILLIS = 250;
+    static final long MAX_BACKOFF_MILLIS = 30 * 1000;
+    private static final int CONNECT_TIMEOUT = 2000;
+    private static final int READ_TIMEOUT = 8000; //TODO check this value
+    private static final Logger LOGGER = Logger.getLogger("IdcDm.HTTPRangeGetter");
+    private static final AtomicInteger GETTERS = new AtomicInteger();
+    // names the connection in the metrics
+    private final int id = GETTERS.incrementAndGet();
+    private final SourceSelector sources;
+    private final RangeScheduler scheduler;
+    private final WriteStage writeStage;
+    private final MappedOutput mappedOutput;
+    private final byte[] readBuffer;
+    private final ChunkPool chunkPool;
+    private TokenBucket tokenBucket;
+    private final int readSize;
+    private final ChunkSizer chunkSizer;
+    private int multiRangeCount;
+    private final ConnectionBudget connectionBudget;
+    private final int maxRetries;
+    private final Metrics metrics;
+    private final DownloadHandle handle;
+    private int failures;
+    // read by the ConnectionMonitor
+    private volatile long bytesReceived;
+    private volatile int errors;
+    private volatile HttpURLConnection connection;
+    private volatile RangeAssignment currentAssignment;
+    private volatile long requestStart;
+    private volatile String url;
+    private volatile boolean cancelled;
+
+    HTTPRangeGetter(
+            SourceSelector sources,
+            RangeScheduler scheduler,
+            WriteStage writeStage,
+            MappedOutput mappedOutput,
+            ChunkPool chunkPool,
+            TokenBucket tokenBucket,
+            DownloadConfig config,
+            ConnectionBudget connectionBudget,
+            Metrics metrics,
+            DownloadHandle handle) {
+        this.sources = sources;
+        this.scheduler = scheduler;
+        this.writeStage = writeStage;
+        this.mappedOutput = mappedOutput;
+        this.chunkPool = chunkPool;
+        this.tokenBucket = tokenBucket;
+        this.readSize = config.readSize;
+        this.readBuffer = mappedOutput != null ? new byte[readSize] : null;
+        this.chunkSizer = new ChunkSizer(config);
+        this.multiRangeCount = config.multiRangeCount;
+        this.connectionBudget = connectionBudget;
+        this.maxRetries = config.maxRetries;
+        this.metrics = metrics;
+        this.handle = handle;
+    }
+
+    private HttpURLConnection openConnection(String url, String ranges) throws IOException {
+        HttpURLConnection httpURLConnection = (HttpURLConnection) new URL(url).openConnection();
+        httpURLConnection.setConnectTimeout(CONNECT_TIMEOUT);
+        httpURLConnection.setReadTimeout(READ_TIMEOUT);
+        httpURLConnection.setRequestProperty("Range", "bytes=" + ranges);
+        requestStart = System.nanoTime();
+        metrics.requests.increment();
+        cancelled = false;
+        connection = httpURLConnection;
+        // a pause which came before connection was set could not abort this request
+        if (handle.isStopping()) {
+            throw new IOException("download paused");
+        }
+        return httpURLConnection;
+    }
+
+    private void downloadRange(String url, RangeAssignment assignment) throws IOException {
+        currentAssignment = assignment;
+        Range range = assignment.getRange();
+        HttpURLConnection httpURLConnection = openConnection(url, range.getStart() + "-" + range.getEnd());
+        int responseCode = httpURLConnection.getResponseCode();
+        metrics.timeToFirstByte.record(System.nanoTime() - requestStart);
+        if (responseCode >= HttpURLConnection.HTTP_BAD_REQUEST) {
+            throw new IOException("server answered with response code: " + responseCode);
+        }
+        if (responseCode != HttpURLConnection.HTTP_PARTIAL && range.getStart() != 0) {
+            throw new IOException("server does not support ranges, response code: " + responseCode);
+        }
+        InputStream inputStream = httpURLConnection.getInputStream();
+        LOGGER.fine(url + ": range " + range.getStart() + "-" + range.getEnd() + ", response code " + responseCode);
+        readAssignment(inputStream, assignment, range.getStart());
+        // if the tail was given to another worker, the JDK drains a short remainder in the background to keep the
+        // connection alive, and closes the connection otherwise
+        inputStream.close();
+        connection = null;
+        currentAssignment = null;
+    }
+
+    /**
+     * Fetch several small ranges with a single multipart/byteranges request.
+     */
+    private void downloadRanges(String url, List<RangeAssignment> assignments) throws IOException {
+        StringBuilder ranges = new StringBuilder();
+        TreeMap<Long, RangeAssignment> byStart = new TreeMap<>();
+        for (RangeAssignment assignment : assignments) {
+            Range range = assignment.getRange();
+            if (ranges.length() > 0) {
+                ranges.append(',');
+            }
+            ranges.append(range.getStart()).append('-').append(range.getEnd());
+            byStart.put(range.getStart(), assignment);
+        }
+        HttpURLConnection httpURLConnection = openConnection(url, ranges.toString());
+        int responseCode = httpURLConnection.getResponseCode();
+        metrics.timeToFirstByte.record(System.nanoTime() - requestStart);
+        String contentType = httpURLConnection.getContentType();
+        String boundary = contentType == null ? null : getParameter(contentType, "boundary");
+        if (responseCode != HttpURLConnection.HTTP_PARTIAL || boundary == null
+                || !contentType.startsWith("multipart/byteranges")) {
+            metrics.multiRangeFallbacks.increment();
+            LOGGER.fine(url + ": multi-range request answered with " + responseCode + ", falling back");
+            httpURLConnection.disconnect();
+            multiRangeCount = 0;
+            for (RangeAssignment assignment : assignments) {
+                downloadRange(url, assignment);
+            }
+            return;
+        }
+        LOGGER.fine(url + ": ranges " + ranges + ", response code " + responseCode);
+        InputStream inputStream = new BufferedInputStream(httpURLConnection.getInputStream());
+        String line;
+        while ((line = readLine(inputStream)) != null && !line.equals("--" + boundary + "--")) {
+            if (line.isEmpty()) {
+                continue;
+            }
+            if (!line.equals("--" + boundary)) {
+                throw new IOException("malformed multipart/byteranges response: " + line);
+            }
+            Range part = null;
+            while ((line = readLine(inputStream)) != null && !line.isEmpty()) {
+                if (line.toLowerCase().startsWith("content-range:")) {
+                    part = parseContentRange(line.substring(line.indexOf(':') + 1).trim());
+                }
+            }
+            if (part == null) {
+                throw new IOException("multipart/byteranges part without Content-Range");
+            }
+            // a server may coalesce close ranges into one part, skip the bytes between them
+            long position = part.getStart();
+            for (RangeAssignment assignment : byStart.subMap(part.getStart(), true, part.getEnd(), true).values()) {
+                Range range = assignment.getRange();
+                skipFully(inputStream, range.getStart() - position);
+                position = readAssignment(inputStream, assignment, range.getStart(), part.getEnd());
+                if (assignment.getRemaining() > 0) {
+                    // the part ends before the assignment, another request gets the rest
+                    scheduler.requeue(assignment);
+                }
+            }
+            skipFully(inputStream, part.getEnd() + 1 - position);
+        }
+        inputStream.close();
+        connection = null;
+        // ranges the server left out are fetched one by one
+        for (RangeAssignment assignment : assignments) {
+            if (assignment.getRemaining() > 0) {
+                downloadRange(url, assignment);
+            }
+        }
+    }
+
+    /**
+     * Read the assignment's bytes from the stream, which must be positioned at offset, one claimed chunk at a time.
+     */
+    private void readAssignment(InputStream inputStream, RangeAssignment assignment, long offset) throws IOException {
+        // the end it has now, claim() stops at the end it shrinks to
+        readAssignment(inputStream, assignment, offset, assignment.getRange().getEnd());
+    }
+
+    /**
+     * Read the assignment's bytes up to end at most, the last byte the stream has for it.
+     *
+     * @return the offset after the last byte read
+     */
+    private long readAssignment(InputStream inputStream, RangeAssignment assignment, long offset, long end)
+            throws IOException {
+        int chunkSize;
+        // the scheduler may shrink the assignment while we read, so claim one chunk at a time
+        while (offset <= end
+                && (chunkSize = assignment.claim((int) Math.min(getMaxChunkSize(offset), end - offset + 1))) > 0) {
+            try {
+                long chunkStart = System.nanoTime();
+                if (mappedOutput != null) {
+                    readMapped(inputStream, offset, chunkSize);
+                } else {
+                    readChunk(inputStream, offset, chunkSize);
+                }
+                chunkSizer.record(chunkSize, System.nanoTime() - chunkStart);
+                offset += chunkSize;
+                failures = 0;
+            } catch (IOException e) {
+                // the chunk was not handed over, it has to be read again
+                assignment.unclaim(offset);
+                throw e;
+            }
+        }
+        return offset;
+    }
+
+    private int getMaxChunkSize(long offset) {
+        if (mappedOutput == null) {
+            return chunkSizer.getChunkSize();
+        }
+        return (int) Math.min(chunkSizer.getChunkSize(), MappedOutput.bytesToWindowEnd(offset));
+    }
+
+    private void readChunk(InputStream inputStream, long offset, int chunkSize) throws IOException {
+        // blocks while all the chunks are queued, until the FileWriter releases one
+        Chunk chunk = chunkPool.acquire();
+        // the chunk goes back to the pool on every path which does not hand it to a writer
+        boolean queued = false;
+        try {
+            chunk.reset(offset, chunkSize);
+            byte[] byteChunk = chunk.getData().array();
+            //fill the chunk with reads of at most readSize bytes
+            int read = 0;
+            while (read < chunkSize) {
+                int toRead = Math.min(readSize, chunkSize - read);
+                //check whether are there enough tokens to read
+                if (!tokenBucket.isUnlimited()) {
+                    takeTokens(toRead);
+                }
+                int output = inputStream.read(byteChunk, read, toRead);
+                if (output == -1) {
+                    throw new IOException("unexpected end of stream at " + (offset + read));
+                }
+                read += output;
+                bytesReceived += output;
+                metrics.bytesReceived.add(output);
+            }
+            writeStage.put(chunk);
+            queued = true;
+        } finally {
+            if (!queued) {
+                chunkPool.release(chunk);
+            }
+        }
+    }
+
+    /**
+     * Copy the chunk from the socket straight into the mapped output file.
+     */
+    private void readMapped(InputStream inputStream, long offset, int chunkSize) throws IOException {
+        int read = 0;
+        while (read < chunkSize) {
+            int toRead = Math.min(readBuffer.length, chunkSize - read);
+            //check whether are there enough tokens to read
+            if (!tokenBucket.isUnlimited()) {
+                takeTokens(toRead);
+            }
+            int output = inputStream.read(readBuffer, 0, toRead);
+            if (output == -1) {
+                throw new IOException("unexpected end of stream at " + (offset + read));
+            }
+            mappedOutput.write(offset + read, readBuffer, output);
+            read += output;
+            bytesReceived += output;
+            metrics.bytesReceived.add(output);
+        }
+        mappedOutput.complete(offset, offset + chunkSize - 1);
+    }
+
+    private void takeTokens(int tokens) {
+        long waitStart = System.nanoTime();
+        tokenBucket.take(tokens);
+        metrics.tokenWait.record(System.nanoTime() - waitStart);
+    }
+
+    private static void skipFully(InputStream inputStream, long bytes) throws IOException {
+        while (bytes > 0) {
+            long skipped = inputStream.skip(bytes);
+            if (skipped <= 0) {
+                if (inputStream.read() == -1) {
+                    throw new IOException("unexpected end of stream");
+                }
+                skipped = 1;
+            }
+            bytes -= skipped;
+        }
+    }
+
+    /**
+     * Read a CRLF terminated header line, or return null at the end of the stream.
+     */
+    static String readLine(InputStream inputStream) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = inputStream.read()) != '\n') {
+            if (c == -1) {
+                return line.length() == 0 ? null : line.toString();
+            }
+            if (c != '\r') {
+                line.append((char) c);
+            }
+        }
+        return line.toString();
+    }
+
+    /**
+     * @return the value of the parameter name of a header such as Content-Type, unquoted, or null if it has none
+     */
+    static String getParameter(String header, String name) {
+        for (String parameter : header.split(";")) {
+            parameter = parameter.trim();
+            if (parameter.startsWith(name + "=")) {
+                return parameter.substring(name.length() + 1).replace("\"", "");
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Parse a "bytes START-END/TOTAL" Content-Range value.
+     */
+    static Range parseContentRange(String value) throws IOException {
+        try {
+            String[] startEnd = value.substring("bytes ".length(), value.indexOf('/')).split("-");
+            return new Range(Long.parseLong(startEnd[0].trim()), Long.parseLong(startEnd[1].trim()));
+        } catch (RuntimeException e) {
+            throw new IOException("malformed Content-Range: " + value);
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            // a streamed download waits for the reader outside the connection budget
+            while (handle.awaitRunning() && scheduler.awaitWork()) {
+                if (connectionBudget != null) {
+                    connectionBudget.acquire();
+                }
+                try {
+                    if (!this.downloadNext()) {
+                        break;
+                    }
+                } finally {
+                    if (connectionBudget != null) {
+                        connectionBudget.release();
+                    }
+                }
+                if (failures > maxRetries) {
+                    // the ranges are back in the scheduler, another getter or the next run may get them
+                    LOGGER.warning("giving up a connection after " + maxRetries + " retries");
+                    break;
+                }
+                if (failures > 0) {
+                    backoff();
+                }
+            }
+        } catch (InterruptedIOException e) {
+            LOGGER.info("connection interrupted");
+        }
+    }
+
+    /**
+     * Sleep between BASE_BACKOFF_MILLIS * 2^(failures - 1) and half of it, so the getters which failed together do
+     * not retry together.
+     */
+    private void backoff() throws InterruptedIOException {
+        long delay = Math.min(BASE_BACKOFF_MILLIS << Math.min(failures - 1, 20), MAX_BACKOFF_MILLIS);
+        delay = delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+        LOGGER.info("retry " + failures + " of " + maxRetries + " in " + delay + " ms");
+        try {
+            Thread.sleep(delay);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("interrupted during backoff");
+        }
+    }
+
+    /**
+     * Pick the source of the next request and hold the budget of its host during the request. The budget is taken
+     * before the ranges, so no range waits for it.
+     *
+     * @return false if there was no more work
+     */
+    private boolean downloadNext() throws InterruptedIOException {
+        SourceSelector.Source source = sources.pick();
+        if (source.budget != null) {
+            source.budget.acquire();
+        }
+        try {
+            return downloadNext(source);
+        } finally {
+            if (source.budget != null) {
+                source.budget.release();
+            }
+        }
+    }
+
+    /**
+     * Download the next range, or batch of small ranges, from the scheduler. If the request fails, what was not
+     * read is given back to the scheduler.
+     *
+     * @return false if there was no more work
+     */
+    private boolean downloadNext(SourceSelector.Source source) throws InterruptedIOException {
+        List<RangeAssignment> batch;
+        if (multiRangeCount > 1) {
+            batch = scheduler.nextSmall(multiRangeCount);
+        } else {
+            batch = new ArrayList<>();
+        }
+        if (batch.isEmpty()) {
+            RangeAssignment assignment = scheduler.next();
+            if (assignment == null) {
+                // what is left may be past the reorder window of a streamed download
+                return !scheduler.isExhausted();
+            }
+            batch.add(assignment);
+        }
+        long start = System.nanoTime();
+        long received = bytesReceived;
+        url = source.url;
+        try {
+            if (batch.size() > 1) {
+                this.downloadRanges(source.url, batch);
+            } else {
+                this.downloadRange(source.url, batch.get(0));
+            }
+            for (RangeAssignment assignment : batch) {
+                scheduler.done(assignment);
+            }
+            sources.completed(source, bytesReceived - received, System.nanoTime() - start);
+        } catch (IOException e) {
+            HttpURLConnection failed = connection;
+            if (failed != null) {
+                failed.disconnect();
+            }
+            connection = null;
+            currentAssignment = null;
+            for (RangeAssignment assignment : batch) {
+                scheduler.requeue(assignment);
+            }
+            if (handle.isStopping()) {
+                // paused or cancelled, the ranges are back in the scheduler for when the download resumes
+                cancelled = false;
+            } else if (cancelled) {
+                cancelled = false;
+                // a slow request, not a failed one
+                sources.completed(source, bytesReceived - received, System.nanoTime() - start);
+                metrics.stragglersReplaced.increment();
+                LOGGER.fine(source.url + ": replacing a slow connection");
+            } else if (e instanceof InterruptedIOException && !(e instanceof SocketTimeoutException)) {
+                throw (InterruptedIOException) e;
+            } else {
+                sources.failed(source);
+                failures++;
+                errors++;
+                metrics.retries.increment();
+                LOGGER.info(source.url + ": request failed: " + e);
+            }
+        }
+        return true;
+    }
+
+    long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    int getId() {
+        return id;
+    }
+
+    /**
+     * @return the source of the current or last request, null before the first request
+     */
+    String getUrl() {
+        return url;
+    }
+
+    /**
+     * @return the number of failed requests so far
+     */
+    int getErrors() {
+        return errors;
+    }
+
+    /**
+     * @return the time the current request started, or -1 if there is none
+     */
+    long getRequestStart() {
+        return connection != null ? requestStart : -1;
+    }
+
+    /**
+     * @return the bytes left in the current single range request, 0 if there is none
+     */
+    long getRemaining() {
+        RangeAssignment assignment = currentAssignment;
+        return assignment != null ? assignment.getRemaining() : 0;
+    }
+
+    /**
+     * Abort the current request from another thread: closing its connection makes the blocked read fail.
+     */
+    void cancel() {
+        HttpURLConnection current = connection;
+        if (current != null) {
+            cancelled = true;
+            current.disconnect();
+        }
+    }
+}
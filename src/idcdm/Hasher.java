@@ -0,0 +1,78 @@
+package idcdm;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+
+/**
+ * An incremental hash over a stream of bytes: a MessageDigest (sha-256, sha-1, md5...) or a checksum (crc32,
+ * and crc32c on Java 9+). Checksum values are returned as 4 big-endian bytes, like the hex they are written in.
+ */
+class Hasher {
+    private final MessageDigest messageDigest;
+    private final Checksum checksum;
+
+    private Hasher(MessageDigest messageDigest, Checksum checksum) {
+        this.messageDigest = messageDigest;
+        this.checksum = checksum;
+    }
+
+    static Hasher create(String algorithm) throws IOException {
+        switch (algorithm.toLowerCase()) {
+            case "crc32":
+                return new Hasher(null, new CRC32());
+            case "crc32c":
+                try {
+                    // java.util.zip.CRC32C only exists since Java 9
+                    Checksum crc32c = (Checksum) Class.forName("java.util.zip.CRC32C").getDeclaredConstructor()
+                            .newInstance();
+                    return new Hasher(null, crc32c);
+                } catch (ReflectiveOperationException e) {
+                    throw new IOException("crc32c is not supported by this JVM");
+                }
+            default:
+                try {
+                    return new Hasher(MessageDigest.getInstance(algorithm), null);
+                } catch (NoSuchAlgorithmException e) {
+                    throw new IOException("unknown hash algorithm: " + algorithm);
+                }
+        }
+    }
+
+    void update(byte[] bytes, int offset, int length) {
+        if (messageDigest != null) {
+            messageDigest.update(bytes, offset, length);
+        } else {
+            checksum.update(bytes, offset, length);
+        }
+    }
+
+    byte[] digest() {
+        if (messageDigest != null) {
+            return messageDigest.digest();
+        }
+        long value = checksum.getValue();
+        return new byte[]{(byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value};
+    }
+
+    static byte[] parseHex(String hex) {
+        if (hex.length() % 2 != 0) {
+            throw new IllegalArgumentException("odd number of hex digits: " + hex);
+        }
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+
+    static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+}
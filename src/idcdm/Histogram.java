@@ -0,0 +1,87 @@
+package idcdm;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A concurrent histogram of non-negative values (typically nanoseconds) with a fixed memory footprint.
+ *
+ * Like an HDR histogram, every power of two is divided into SUB_BUCKETS linear buckets, so any recorded value is
+ * known within 1 / SUB_BUCKETS (12.5%) over the whole range of long. Recording only increments counters, it never
+ * allocates or locks, so it can be called on the hot path of every read and write.
+ */
+class Histogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    void record(long value) {
+        value = Math.max(value, 0);
+        counts.incrementAndGet(index(value));
+        count.increment();
+        sum.add(value);
+        long currentMax;
+        while (value > (currentMax = max.get()) && !max.compareAndSet(currentMax, value)) {
+            // lost a race with another maximum, check again
+        }
+    }
+
+    private static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (magnitude - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (magnitude - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * @return the highest value which falls in the bucket
+     */
+    private static long highestValue(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int magnitude = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long lowest = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << (magnitude - SUB_BUCKET_BITS);
+        return lowest + (1L << (magnitude - SUB_BUCKET_BITS)) - 1;
+    }
+
+    long getCount() {
+        return count.sum();
+    }
+
+    long getMax() {
+        return max.get();
+    }
+
+    long getMean() {
+        long n = count.sum();
+        return n == 0 ? 0 : sum.sum() / n;
+    }
+
+    /**
+     * @return the value below which the given fraction of the recorded values fall, e.g. 0.99 for the p99
+     */
+    long getPercentile(double fraction) {
+        long n = count.sum();
+        if (n == 0) {
+            return 0;
+        }
+        long rank = Math.max((long) Math.ceil(fraction * n), 1);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(highestValue(i), getMax());
+            }
+        }
+        return getMax();
+    }
+}
@@ -0,0 +1,330 @@
+package idcdm;
+
+import java.io.BufferedReader;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.logging.ConsoleHandler;
+import java.util.logging.Formatter;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+public class IdcDm {
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+    // the parent of the loggers of the engine, held so its configuration is not garbage collected
+    private static final Logger LOGGER = Logger.getLogger("IdcDm");
+
+    /**
+     * Receive arguments from the command-line, provide some feedback and start the download.
+     *
+     * @param args command-line arguments
+     */
+    public static void main(String[] args) {
+        DownloadConfig config = new DownloadConfig();
+        List<String> positional = new ArrayList<>();
+        try {
+            for (String arg : args) {
+                if (!arg.startsWith("--")) {
+                    positional.add(arg);
+                } else if (!config.parseOption(arg)) {
+                    usage();
+                }
+            }
+            // in batch mode the URLs come from the batch file
+            int first = config.batchFile == null ? 1 : 0;
+            if (positional.size() < first || positional.size() > first + 2 || config.stdout && first == 0) {
+                usage();
+            } else if (positional.size() >= first + 1) {
+                config.parseConnections(positional.get(first));
+                if (positional.size() == first + 2)
+                    config.maxBytesPerSecond = DownloadConfig.positive("MAX-BYTES-PER-SECOND",
+                            Long.parseLong(positional.get(first + 1)));
+            }
+        } catch (RuntimeException e) {
+            if (e instanceof IllegalArgumentException && e.getMessage() != null) {
+                System.err.println(e.getMessage());
+            }
+            usage();
+        }
+
+        configureLogging(config.verbose);
+        System.err.printf("Downloading");
+        if (config.batchFile != null)
+            System.err.printf(" %s, %d files at a time,", config.batchFile, config.parallelFiles);
+        if (config.autoConnections)
+            System.err.printf(" using %d to %d connections", config.minConnections, config.numberOfWorkers);
+        else if (config.numberOfWorkers > 1)
+            System.err.printf(" using %d connections", config.numberOfWorkers);
+        if (config.maxBytesPerSecond != null)
+            System.err.printf(" limited to %d Bps%s", config.maxBytesPerSecond,
+                    config.interactive ? " (type a new limit to change it)" : "");
+        else if (config.interactive)
+            System.err.printf(" (type a limit to set one)");
+        if (config.maxBytesPerSecondPerConnection != null)
+            System.err.printf(" with %d Bps per connection", config.maxBytesPerSecondPerConnection);
+        if (config.virtualThreads && !EngineThreads.virtualThreadsSupported())
+            System.err.printf(" (virtual threads are not supported by this JVM, using platform threads)");
+        System.err.printf("...\n");
+
+        OutputStream stdout = null;
+        if (config.stdout) {
+            // the file goes to stdout, so everything else goes to stderr
+            stdout = new FileOutputStream(FileDescriptor.out);
+            System.setOut(System.err);
+        }
+        DownloadEngine engine = new DownloadEngine(config);
+        // reading stdin unasked would stop a backgrounded download (SIGTTIN) and consume a redirected file
+        if (config.interactive) {
+            watchLimitChanges(engine);
+        }
+        boolean succeeded;
+        if (config.stdout) {
+            succeeded = streamTo(engine, positional.get(0), config, stdout);
+            System.err.println(succeeded ? "Download succeeded" : "Download failed");
+        } else if (config.batchFile == null) {
+            String url = positional.get(0);
+            succeeded = engine.download(url, config.mirrors, new DownloadHandle(url, newPercentPrinter()));
+            System.err.println(succeeded ? "Download succeeded" : "Download failed");
+        } else {
+            succeeded = downloadBatch(engine, config);
+        }
+        engine.shutdown();
+        System.exit(succeeded ? 0 : 1);
+    }
+
+    /**
+     * Download every URL listed in the batch file, parallelFiles at a time, through the shared engine. A URL whose
+     * file name is already the name of an earlier URL of the batch fails without being downloaded, since both would
+     * write the same output file.
+     *
+     * @return true if all the downloads succeeded
+     */
+    private static boolean downloadBatch(final DownloadEngine engine, DownloadConfig config) {
+        List<String> urls = new ArrayList<>();
+        List<List<String>> mirrors = new ArrayList<>();
+        // output file name -> the URL it is downloaded from
+        Map<String, String> outputs = new HashMap<>();
+        int rejected = 0;
+        try (BufferedReader reader = new BufferedReader(new FileReader(config.batchFile))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (!line.isEmpty() && !line.startsWith("#")) {
+                    List<String> sources = new ArrayList<>(Arrays.asList(line.split("\\s+")));
+                    String url = sources.remove(0);
+                    String name = DownloadableMetadata.getName(url);
+                    if (outputs.containsKey(name)) {
+                        System.err.println(url + ": Download failed, " + name + " is also the file of "
+                                + outputs.get(name));
+                        rejected++;
+                        continue;
+                    }
+                    outputs.put(name, url);
+                    urls.add(url);
+                    mirrors.add(sources);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("cannot read " + config.batchFile + ": " + e.getMessage());
+            return false;
+        }
+        // platform threads even in virtual mode, a virtual thread per task would run the whole batch at once
+        ExecutorService files = Executors.newFixedThreadPool(config.parallelFiles);
+        List<Future<Boolean>> results = new ArrayList<>();
+        for (int i = 0; i < urls.size(); i++) {
+            final String url = urls.get(i);
+            final List<String> urlMirrors = mirrors.get(i);
+            final DownloadHandle handle = new DownloadHandle(url, newPercentPrinter());
+            results.add(files.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return engine.download(url, urlMirrors, handle);
+                }
+            }));
+        }
+        files.shutdown();
+        int failed = rejected;
+        for (int i = 0; i < urls.size(); i++) {
+            boolean succeeded;
+            try {
+                succeeded = results.get(i).get();
+            } catch (InterruptedException | ExecutionException e) {
+                e.printStackTrace();
+                succeeded = false;
+            }
+            if (!succeeded) {
+                failed++;
+            }
+            System.err.println(urls.get(i) + ": " + (succeeded ? "Download succeeded" : "Download failed"));
+        }
+        int total = urls.size() + rejected;
+        System.err.printf("%d of %d downloads succeeded\n", total - failed, total);
+        return failed == 0;
+    }
+
+    /**
+     * Download url while copying it in order to out, e.g. into a pipe to a decompressor.
+     *
+     * @return true if the download succeeded and all of it was copied
+     */
+    private static boolean streamTo(final DownloadEngine engine, final String url, final DownloadConfig config,
+                                    OutputStream out) {
+        final DownloadHandle handle = new DownloadHandle(url, newPercentPrinter(), true);
+        FutureTask<Boolean> download = new FutureTask<>(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return engine.download(url, config.mirrors, handle);
+            }
+        });
+        new Thread(download).start();
+        boolean copied = true;
+        try (DownloadStream stream = handle.getStream()) {
+            byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+            int read;
+            while ((read = stream.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            out.flush();
+        } catch (IOException e) {
+            // e.g. the reading end of the pipe was closed, closing the stream cancelled the download
+            System.err.println("streaming failed: " + e.getMessage());
+            copied = false;
+        }
+        try {
+            return download.get() && copied;
+        } catch (InterruptedException | ExecutionException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * @return a listener printing the percentage downloaded every time it changes
+     */
+    private static ProgressListener newPercentPrinter() {
+        return new ProgressListener() {
+            private int lastPercent = -1;
+
+            @Override
+            public void progress(long bytesDownloaded, long fileSize) {
+                int percent = (int) (bytesDownloaded * 100 / Math.max(fileSize, 1));
+                if (percent != lastPercent) {
+                    lastPercent = percent;
+                    System.err.println("Downloaded" + percent + "%");
+                }
+            }
+        };
+    }
+
+    private static void usage() {
+        System.err.printf("usage:\n\tjava idcdm.IdcDm [OPTIONS] URL [MAX-CONCURRENT-CONNECTIONS] [MAX-DOWNLOAD-LIMIT]\n");
+        System.err.printf("\tjava idcdm.IdcDm [OPTIONS] --batch=FILE [MAX-CONCURRENT-CONNECTIONS] [MAX-DOWNLOAD-LIMIT]\n");
+        System.err.printf("\tMAX-CONCURRENT-CONNECTIONS may be auto or auto:MIN-MAX to tune it while downloading (default 1-%d)\n",
+                DownloadConfig.DEFAULT_MAX_AUTO_CONNECTIONS);
+        System.err.printf("options:\n");
+        System.err.printf("\t--connections=N|auto|auto:MIN-MAX  same as MAX-CONCURRENT-CONNECTIONS\n");
+        System.err.printf("\t--rate=RATE               same as MAX-DOWNLOAD-LIMIT, in Bps with an optional K, M or G\n");
+        System.err.printf("\t--read-size=SIZE          bytes per network read (default 16K)\n");
+        System.err.printf("\t--chunk-size=SIZE         bytes per chunk written to disk (default 64K)\n");
+        System.err.printf("\t--adaptive[=MIN-MAX]      grow the chunk size with the connection's throughput (default 64K-4M)\n");
+        System.err.printf("\t--burst=SIZE              token bucket capacity (default a tenth of MAX-DOWNLOAD-LIMIT)\n");
+        System.err.printf("\t--connection-limit=RATE   limit every connection to RATE Bps, under the global limit\n");
+        System.err.printf("\t--refill=lazy|soft|hard   refill the bucket from elapsed time, or add/reset it every tick\n");
+        System.err.printf("\t--multi-range[=N]         fetch up to N small missing ranges per request (default 16)\n");
+        System.err.printf("\t--virtual-threads         run the connections and the writer on virtual threads (Java 21+)\n");
+        System.err.printf("\t--mirror=URL              another URL of the same file, may be repeated\n");
+        System.err.printf("\t--stdout                  also write the file in order to stdout while it downloads\n");
+        System.err.printf("\t--stream-window=SIZE      how far ahead of stdout the download may go (default 64M)\n");
+        System.err.printf("\t--batch=FILE              download every URL listed in FILE, one per line (a line may add mirrors: URL MIRROR...)\n");
+        System.err.printf("\t--parallel-files=N        files downloaded at the same time in batch mode (default 4)\n");
+        System.err.printf("\t--max-connections=N       global limit on requests in flight\n");
+        System.err.printf("\t--host-connections=N      limit on requests in flight to the same host\n");
+        System.err.printf("\t--buffer-memory=SIZE      memory used for chunks in flight (default 64M)\n");
+        System.err.printf("\t--writers=N               threads writing the file, each owning 16M regions (default 1)\n");
+        System.err.printf("\t--mmap                    preallocate and memory-map the file, read straight into it\n");
+        System.err.printf("\t--preallocate=none|sparse|full  size the file up front, full also writes zeros (default sparse)\n");
+        System.err.printf("\t--digest=ALGORITHM:HEX    verify the whole file, e.g. sha-256:9f86d0...\n");
+        System.err.printf("\t--manifest=FILE           verify every block against FILE and download corrupt blocks again\n");
+        System.err.printf("\t--verify-threads=N        threads hashing blocks (default 2)\n");
+        System.err.printf("\t--cache=DIR               copy blocks of the manifest found in DIR instead of downloading them, keep new ones there\n");
+        System.err.printf("\t--cache-size=SIZE         bound of the cache, least recently used blocks go first (default 1G)\n");
+        System.err.printf("\t--seed=FILE               copy blocks of the manifest found in FILE, e.g. the previous version\n");
+        System.err.printf("\t--retries=N               failed requests in a row before a connection gives up (default 8)\n");
+        System.err.printf("\t--straggler-ratio=R       replace connections slower than R times the median (default 0.25, 0 to disable)\n");
+        System.err.printf("\t--metrics=FILE            append the metrics to FILE as JSON lines (also available through JMX)\n");
+        System.err.printf("\t--metrics-interval=MILLIS time between two metrics lines (default 1000)\n");
+        System.err.printf("\t--sync-bytes=SIZE         commit the file and metadata every SIZE bytes (default 8M)\n");
+        System.err.printf("\t--sync-interval=MILLIS    commit the file and metadata every MILLIS ms (default 1000)\n");
+        System.err.printf("\t--verbose                 also print every request, connection change and verified digest\n");
+        System.err.printf("\t--interactive             read a new MAX-DOWNLOAD-LIMIT from stdin, one per line, while downloading\n");
+        System.exit(1);
+    }
+
+    /**
+     * Print the messages of the engine to stderr, one line each without the logger's header, and its fine-grained
+     * messages too when verbose.
+     */
+    private static void configureLogging(boolean verbose) {
+        ConsoleHandler handler = new ConsoleHandler();
+        handler.setLevel(Level.ALL);
+        handler.setFormatter(new Formatter() {
+            @Override
+            public String format(LogRecord record) {
+                StringWriter message = new StringWriter();
+                PrintWriter writer = new PrintWriter(message);
+                writer.println(formatMessage(record));
+                if (record.getThrown() != null) {
+                    record.getThrown().printStackTrace(writer);
+                }
+                writer.flush();
+                return message.toString();
+            }
+        });
+        LOGGER.setUseParentHandlers(false);
+        LOGGER.addHandler(handler);
+        LOGGER.setLevel(verbose ? Level.FINE : Level.INFO);
+    }
+
+    /**
+     * Let the user change the global limit while downloading by typing a new bytes-per-second value, with
+     * --interactive only.
+     */
+    private static void watchLimitChanges(final DownloadEngine engine) {
+        Thread watcher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));
+                try {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        long limit;
+                        try {
+                            limit = DownloadConfig.parseSize(line.trim());
+                        } catch (RuntimeException e) {
+                            System.err.println("not a download limit: " + line);
+                            continue;
+                        }
+                        engine.setMaxBytesPerSecond(limit);
+                        System.err.printf("limited to %d Bps\n", limit);
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+}
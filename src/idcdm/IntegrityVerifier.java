@@ -0,0 +1,302 @@
+package idcdm;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Verifies a file against a BlockManifest while it is being downloaded.
+ *
+ * The DownloadableMetadata reports every committed range. A manifest block is hashed as soon as all of it is
+ * committed, on a pool of threads, so blocks are verified in parallel and right after they were written, while
+ * they are still in the page cache. A corrupt block is removed from the metadata so the engine downloads it again.
+ * The hash of the whole file is computed incrementally over the contiguous prefix of the file which is committed
+ * (and, with block hashes, verified), so no second pass over the file is needed when the download ends.
+ *
+ * On resume, the blocks which were already on disk are verified again, concurrently with the download.
+ * With a BlockCache, every verified block is stored in it, and a corrupt block is dropped from it in case that is
+ * where it came from.
+ * A DownloadStream is given every block once it passed, so the reader never sees a corrupt one.
+ */
+class IntegrityVerifier {
+    private static final int READ_SIZE = 1024 * 1024;
+    private static final Logger LOGGER = Logger.getLogger("IdcDm.IntegrityVerifier");
+
+    private final DownloadableMetadata downloadableMetadata;
+    private final BlockManifest manifest;
+    private final long fileSize;
+    private final ExecutorService blockExecutor;
+    private final ExecutorService prefixExecutor;
+    private final AtomicBoolean prefixScheduled = new AtomicBoolean();
+    // blocks which passed, and blocks which passed or are being hashed
+    private final BitSet verified = new BitSet();
+    private final BitSet queued = new BitSet();
+    private int pendingBlocks;
+    private int corruptBlocks;
+    private FileChannel channel;
+    private Hasher fileHasher;
+    private long hashedUpTo;
+    private final byte[] prefixBuffer;
+    private final BlockCache cache;
+    private final Metrics metrics;
+    private DownloadStream stream;
+
+    IntegrityVerifier(DownloadableMetadata downloadableMetadata, BlockManifest manifest, long fileSize, int threads,
+                      BlockCache cache, Metrics metrics) throws IOException {
+        this.downloadableMetadata = downloadableMetadata;
+        this.cache = cache;
+        this.metrics = metrics;
+        this.manifest = manifest;
+        this.fileSize = fileSize;
+        if (manifest.getNumberOfBlocks() > 0
+                && manifest.getNumberOfBlocks() != (fileSize + manifest.blockSize - 1) / manifest.blockSize) {
+            throw new IOException("the manifest has " + manifest.getNumberOfBlocks() + " blocks of "
+                    + manifest.blockSize + " bytes but the file has " + fileSize + " bytes");
+        }
+        // fail now rather than in a verifier thread if the algorithms are unknown
+        Hasher.create(manifest.algorithm);
+        this.fileHasher = manifest.fileDigest != null ? Hasher.create(manifest.fileAlgorithm) : null;
+        this.prefixBuffer = fileHasher != null ? new byte[READ_SIZE] : null;
+        this.blockExecutor = Executors.newFixedThreadPool(threads);
+        this.prefixExecutor = Executors.newSingleThreadExecutor();
+    }
+
+    /**
+     * Let stream read every block as soon as it is verified, to be called before start().
+     */
+    void setStream(DownloadStream stream) {
+        this.stream = stream;
+    }
+
+    /**
+     * Verify whatever the metadata already has, and be told about every range committed from now on.
+     */
+    void start() {
+        downloadableMetadata.setVerifier(this);
+        for (Range range : downloadableMetadata.getCompletedRanges()) {
+            committed(range);
+        }
+        schedulePrefix();
+    }
+
+    /**
+     * Called by the metadata after range was added to it.
+     */
+    void committed(Range range) {
+        if (manifest.getNumberOfBlocks() == 0) {
+            schedulePrefix();
+            return;
+        }
+        long first = range.getStart() / manifest.blockSize;
+        long last = range.getEnd() / manifest.blockSize;
+        for (long block = first; block <= last; block++) {
+            final int index = (int) block;
+            long start = index * manifest.blockSize;
+            long end = Math.min(start + manifest.blockSize, fileSize) - 1;
+            if (!downloadableMetadata.isCompleted(start, end)) {
+                continue;
+            }
+            synchronized (this) {
+                if (queued.get(index)) {
+                    continue;
+                }
+                queued.set(index);
+                pendingBlocks++;
+            }
+            blockExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    verifyBlock(index);
+                }
+            });
+        }
+    }
+
+    private void verifyBlock(int block) {
+        long start = block * manifest.blockSize;
+        long end = Math.min(start + manifest.blockSize, fileSize) - 1;
+        boolean passed = false;
+        try {
+            Hasher hasher = Hasher.create(manifest.algorithm);
+            byte[] buffer = new byte[(int) Math.min(READ_SIZE, manifest.blockSize)];
+            hash(hasher, buffer, start, end + 1);
+            passed = Arrays.equals(hasher.digest(), manifest.getBlockDigest(block));
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "cannot hash block " + block, e);
+        }
+        if (cache != null) {
+            String key = BlockCache.getKey(manifest.algorithm, manifest.getBlockDigest(block));
+            try {
+                if (passed) {
+                    cache.put(key, getChannel(), start, end - start + 1);
+                } else {
+                    cache.remove(key);
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "cannot update the block cache", e);
+            }
+        }
+        if (!passed) {
+            LOGGER.warning("block " + block + " (bytes " + start + "-" + end + ") is corrupt, downloading it again");
+            try {
+                downloadableMetadata.removeRange(new Range(start, end));
+                if (stream != null) {
+                    stream.corrupt(start, end);
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.SEVERE, "cannot remove block " + block + " from the metadata", e);
+            }
+        }
+        synchronized (this) {
+            if (passed) {
+                verified.set(block);
+            } else {
+                queued.clear(block);
+                corruptBlocks++;
+                metrics.corruptBlocks.increment();
+            }
+            pendingBlocks--;
+            notifyAll();
+        }
+        if (passed) {
+            if (stream != null) {
+                stream.readable(start, end);
+            }
+            schedulePrefix();
+        }
+    }
+
+    private void schedulePrefix() {
+        if (fileHasher == null || !prefixScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        prefixExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                prefixScheduled.set(false);
+                hashPrefix();
+            }
+        });
+    }
+
+    /**
+     * Feed the file hash with the bytes between what it has seen and the end of the contiguous verified prefix.
+     */
+    private void hashPrefix() {
+        long limit;
+        if (manifest.getNumberOfBlocks() > 0) {
+            synchronized (this) {
+                limit = Math.min(verified.nextClearBit(0) * manifest.blockSize, fileSize);
+            }
+        } else {
+            limit = downloadableMetadata.getCompletedPrefix();
+        }
+        if (limit <= hashedUpTo) {
+            return;
+        }
+        try {
+            hash(fileHasher, prefixBuffer, hashedUpTo, limit);
+            hashedUpTo = limit;
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "cannot hash the file", e);
+        }
+    }
+
+    private void hash(Hasher hasher, byte[] buffer, long from, long to) throws IOException {
+        FileChannel fileChannel = getChannel();
+        ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+        long position = from;
+        while (position < to) {
+            byteBuffer.clear();
+            byteBuffer.limit((int) Math.min(buffer.length, to - position));
+            int read = fileChannel.read(byteBuffer, position);
+            if (read < 0) {
+                throw new IOException("unexpected end of file at " + position);
+            }
+            hasher.update(buffer, 0, read);
+            position += read;
+        }
+    }
+
+    private synchronized FileChannel getChannel() throws IOException {
+        // the file does not exist before the first range is written
+        if (channel == null) {
+            channel = FileChannel.open(Paths.get(downloadableMetadata.getFilename()), StandardOpenOption.READ);
+        }
+        return channel;
+    }
+
+    /**
+     * Wait until every committed block was verified.
+     *
+     * @return the number of corrupt blocks found since the previous call
+     */
+    synchronized int awaitBlocks() throws InterruptedException {
+        while (pendingBlocks > 0) {
+            wait();
+        }
+        int corrupt = corruptBlocks;
+        corruptBlocks = 0;
+        return corrupt;
+    }
+
+    /**
+     * Finish hashing the whole file and compare it to the expected hash. On a mismatch nothing can tell which part
+     * is corrupt, so the whole file is removed from the metadata.
+     *
+     * @return true if the whole file matched, or the manifest had no hash for it
+     */
+    boolean verifyFile() throws InterruptedException, IOException {
+        if (fileHasher == null) {
+            return true;
+        }
+        try {
+            prefixExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    hashPrefix();
+                }
+            }).get();
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+        if (hashedUpTo != fileSize) {
+            return false;
+        }
+        byte[] digest = fileHasher.digest();
+        if (Arrays.equals(digest, manifest.fileDigest)) {
+            LOGGER.fine(downloadableMetadata.getFilename() + ": " + manifest.fileAlgorithm + " " + Hasher.toHex(digest)
+                    + " verified");
+            return true;
+        }
+        LOGGER.warning(downloadableMetadata.getFilename() + ": " + manifest.fileAlgorithm + " of the file is "
+                + Hasher.toHex(digest) + ", expected " + Hasher.toHex(manifest.fileDigest));
+        downloadableMetadata.removeRange(new Range(0L, fileSize - 1));
+        return false;
+    }
+
+    void close() {
+        downloadableMetadata.setVerifier(null);
+        blockExecutor.shutdownNow();
+        prefixExecutor.shutdownNow();
+        try {
+            synchronized (this) {
+                if (channel != null) {
+                    channel.close();
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "cannot close the file", e);
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package idcdm;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A memory-mapped output file, used instead of the WriteStage in mmap mode.
+ *
+ * The file is preallocated to its full size and mapped lazily in WINDOW_SIZE windows. HTTPRangeGetters copy the
+ * socket data straight into the mapping, so there is no Chunk, no queue hop and no write system call. Completed
+ * ranges are committed in groups like the FileWriter does: the dirty windows are forced to the storage device, and
+ * only then are the ranges added to the metadata.
+ */
+class MappedOutput {
+    static final long WINDOW_SIZE = 64 * 1024 * 1024;
+
+    private final DownloadableMetadata downloadableMetadata;
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final long fileSize;
+    private final MappedByteBuffer[] windows;
+    private final boolean[] dirty;
+    private final long syncBytes;
+    private final long syncIntervalMillis;
+    private final Object commitLock = new Object();
+    private final Metrics metrics;
+    private List<Range> pendingRanges = new ArrayList<>();
+    private long pendingBytes;
+    private long lastSync;
+
+    MappedOutput(DownloadableMetadata downloadableMetadata, long fileSize, DownloadConfig config, Metrics metrics)
+            throws IOException {
+        this.downloadableMetadata = downloadableMetadata;
+        this.metrics = metrics;
+        this.fileSize = fileSize;
+        this.file = new RandomAccessFile(downloadableMetadata.getFilename(), "rw");
+        this.file.setLength(fileSize);
+        this.channel = file.getChannel();
+        int numberOfWindows = (int) ((fileSize + WINDOW_SIZE - 1) / WINDOW_SIZE);
+        this.windows = new MappedByteBuffer[numberOfWindows];
+        this.dirty = new boolean[numberOfWindows];
+        this.syncBytes = config.syncBytes;
+        this.syncIntervalMillis = config.syncIntervalMillis;
+        this.lastSync = System.currentTimeMillis();
+    }
+
+    /**
+     * @return the number of bytes from offset to the end of its window, the most a single write may cover
+     */
+    static long bytesToWindowEnd(long offset) {
+        return WINDOW_SIZE - offset % WINDOW_SIZE;
+    }
+
+    /**
+     * Copy length bytes to the file at offset, which must not cross a window boundary.
+     */
+    void write(long offset, byte[] bytes, int length) throws IOException {
+        MappedByteBuffer window = getWindow((int) (offset / WINDOW_SIZE));
+        int position = (int) (offset % WINDOW_SIZE);
+        // absolute puts are not available before Java 13, so copy through a private view of the window
+        ByteBuffer view = window.duplicate();
+        view.position(position);
+        view.put(bytes, 0, length);
+        metrics.bytesWritten.add(length);
+    }
+
+    private synchronized MappedByteBuffer getWindow(int index) throws IOException {
+        if (windows[index] == null) {
+            long start = index * WINDOW_SIZE;
+            windows[index] = channel.map(FileChannel.MapMode.READ_WRITE, start,
+                    Math.min(WINDOW_SIZE, fileSize - start));
+        }
+        return windows[index];
+    }
+
+    /**
+     * Record that [start, end] is in the mapping, committing if enough bytes or time have accumulated.
+     */
+    void complete(long start, long end) throws IOException {
+        downloadableMetadata.written(start, end);
+        boolean commitDue;
+        synchronized (this) {
+            pendingRanges.add(new Range(start, end));
+            pendingBytes += end - start + 1;
+            for (long window = start / WINDOW_SIZE; window <= end / WINDOW_SIZE; window++) {
+                dirty[(int) window] = true;
+            }
+            commitDue = pendingBytes >= syncBytes || System.currentTimeMillis() - lastSync >= syncIntervalMillis;
+        }
+        if (commitDue) {
+            commit();
+        }
+    }
+
+    /**
+     * Commit if the last commit is older than the sync interval, for when no range completes for a while.
+     */
+    void commitIfDue() throws IOException {
+        boolean commitDue;
+        synchronized (this) {
+            commitDue = System.currentTimeMillis() - lastSync >= syncIntervalMillis;
+        }
+        if (commitDue) {
+            commit();
+        }
+    }
+
+    /**
+     * Group commit: force the dirty windows, then record the ranges completed before the force in the metadata.
+     */
+    void commit() throws IOException {
+        synchronized (commitLock) {
+            List<Range> ranges;
+            List<MappedByteBuffer> toForce = new ArrayList<>();
+            synchronized (this) {
+                ranges = pendingRanges;
+                pendingRanges = new ArrayList<>();
+                pendingBytes = 0;
+                lastSync = System.currentTimeMillis();
+                for (int i = 0; i < dirty.length; i++) {
+                    if (dirty[i]) {
+                        dirty[i] = false;
+                        toForce.add(windows[i]);
+                    }
+                }
+            }
+            if (ranges.isEmpty()) {
+                return;
+            }
+            long forceStart = System.nanoTime();
+            for (MappedByteBuffer window : toForce) {
+                window.force();
+            }
+            metrics.fsync.record(System.nanoTime() - forceStart);
+            for (Range range : ranges) {
+                downloadableMetadata.addRange(range);
+            }
+            long syncStart = System.nanoTime();
+            downloadableMetadata.sync();
+            metrics.metadataSync.record(System.nanoTime() - syncStart);
+        }
+    }
+
+    /**
+     * Commit everything and close the file. The windows are unmapped when they are garbage collected.
+     */
+    void finish() throws IOException {
+        try {
+            commit();
+        } finally {
+            file.close();
+        }
+    }
+}
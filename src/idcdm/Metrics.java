@@ -0,0 +1,228 @@
+package idcdm;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms of a DownloadEngine, shared by all its downloads.
+ *
+ * The pipeline records into striped counters (LongAdder) and Histograms, which do not allocate or lock, so the
+ * instrumentation may stay on in production. All latencies are recorded in nanoseconds:
+ * - timeToFirstByte: from sending a Range request to receiving the response headers
+ * - tokenWait: time a getter waited in the TokenBucket
+ * - queueWait: time a chunk waited between the HTTPRangeGetter and its FileWriter
+ * - write: a single write or gathering write of the FileWriter
+ * - fsync: forcing the output file (or the mapped windows) to the storage device
+ * - metadataSync: appending to and syncing the metadata journal
+ * Per-connection throughput comes from the HTTPRangeGetters registered while they run.
+ *
+ * The metrics are exposed through JMX (MetricsMXBean) and dumped as JSON lines by a MetricsReporter. Reading them
+ * has no side effect, so any number of JMX clients may poll them; the rates of the dump are computed by the
+ * MetricsReporter from its own previous sample.
+ */
+class Metrics implements MetricsMXBean {
+    final LongAdder bytesReceived = new LongAdder();
+    final LongAdder bytesWritten = new LongAdder();
+    final LongAdder requests = new LongAdder();
+    final LongAdder multiRangeFallbacks = new LongAdder();
+    final LongAdder connectionLimitChanges = new LongAdder();
+    final LongAdder retries = new LongAdder();
+    final LongAdder stragglersReplaced = new LongAdder();
+    final LongAdder corruptBlocks = new LongAdder();
+    final LongAdder bytesDeduplicated = new LongAdder();
+    final LongAdder queuedChunks = new LongAdder();
+    final Histogram timeToFirstByte = new Histogram();
+    final Histogram tokenWait = new Histogram();
+    final Histogram queueWait = new Histogram();
+    final Histogram write = new Histogram();
+    final Histogram fsync = new Histogram();
+    final Histogram metadataSync = new Histogram();
+
+    private final List<HTTPRangeGetter> connections = new CopyOnWriteArrayList<>();
+
+    void register(List<HTTPRangeGetter> getters) {
+        connections.addAll(getters);
+    }
+
+    void unregister(List<HTTPRangeGetter> getters) {
+        connections.removeAll(getters);
+    }
+
+    /**
+     * @return the running connections of all the downloads
+     */
+    List<HTTPRangeGetter> getConnections() {
+        return connections;
+    }
+
+    private Map<String, Histogram> getHistograms() {
+        Map<String, Histogram> histograms = new LinkedHashMap<>();
+        histograms.put("timeToFirstByte", timeToFirstByte);
+        histograms.put("tokenWait", tokenWait);
+        histograms.put("queueWait", queueWait);
+        histograms.put("write", write);
+        histograms.put("fsync", fsync);
+        histograms.put("metadataSync", metadataSync);
+        return histograms;
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    @Override
+    public long getRequests() {
+        return requests.sum();
+    }
+
+    @Override
+    public long getMultiRangeFallbacks() {
+        return multiRangeFallbacks.sum();
+    }
+
+    @Override
+    public long getConnectionLimitChanges() {
+        return connectionLimitChanges.sum();
+    }
+
+    @Override
+    public long getRetries() {
+        return retries.sum();
+    }
+
+    @Override
+    public long getStragglersReplaced() {
+        return stragglersReplaced.sum();
+    }
+
+    @Override
+    public long getCorruptBlocks() {
+        return corruptBlocks.sum();
+    }
+
+    @Override
+    public long getBytesDeduplicated() {
+        return bytesDeduplicated.sum();
+    }
+
+    @Override
+    public long getQueuedChunks() {
+        return queuedChunks.sum();
+    }
+
+    @Override
+    public int getActiveConnections() {
+        int active = 0;
+        for (HTTPRangeGetter getter : connections) {
+            if (getter.getRequestStart() >= 0) {
+                active++;
+            }
+        }
+        return active;
+    }
+
+    @Override
+    public Map<String, Long> getP50Micros() {
+        return getPercentilesMicros(0.5);
+    }
+
+    @Override
+    public Map<String, Long> getP99Micros() {
+        return getPercentilesMicros(0.99);
+    }
+
+    private Map<String, Long> getPercentilesMicros(double fraction) {
+        Map<String, Long> percentiles = new LinkedHashMap<>();
+        for (Map.Entry<String, Histogram> entry : getHistograms().entrySet()) {
+            percentiles.put(entry.getKey(), entry.getValue().getPercentile(fraction) / 1000);
+        }
+        return percentiles;
+    }
+
+    @Override
+    public String getSnapshot() {
+        return getSnapshot(null, null);
+    }
+
+    /**
+     * Return all the metrics as one JSON object, with the given rates when they are not null.
+     *
+     * @param bytesPerSecond the download rate of the engine
+     * @param connectionRates the download rate of every connection, those missing have none
+     */
+    String getSnapshot(Long bytesPerSecond, Map<HTTPRangeGetter, Long> connectionRates) {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"time\":").append(System.currentTimeMillis());
+        json.append(",\"bytesReceived\":").append(bytesReceived.sum());
+        json.append(",\"bytesWritten\":").append(bytesWritten.sum());
+        if (bytesPerSecond != null) {
+            json.append(",\"bytesPerSecond\":").append(bytesPerSecond);
+        }
+        // every running connection, with the source of its current or last request
+        json.append(",\"connections\":[");
+        boolean first = true;
+        for (HTTPRangeGetter getter : connections) {
+            if (!first) {
+                json.append(',');
+            }
+            first = false;
+            json.append("{\"connection\":").append(getter.getId());
+            String url = getter.getUrl();
+            if (url != null) {
+                json.append(",\"url\":\"").append(escape(url)).append('"');
+            }
+            json.append(",\"bytesReceived\":").append(getter.getBytesReceived());
+            Long rate = connectionRates != null ? connectionRates.get(getter) : null;
+            if (rate != null) {
+                json.append(",\"bytesPerSecond\":").append(rate);
+            }
+            json.append('}');
+        }
+        json.append(']');
+        json.append(",\"activeConnections\":").append(getActiveConnections());
+        json.append(",\"queuedChunks\":").append(queuedChunks.sum());
+        json.append(",\"requests\":").append(requests.sum());
+        json.append(",\"multiRangeFallbacks\":").append(multiRangeFallbacks.sum());
+        json.append(",\"connectionLimitChanges\":").append(connectionLimitChanges.sum());
+        json.append(",\"retries\":").append(retries.sum());
+        json.append(",\"stragglersReplaced\":").append(stragglersReplaced.sum());
+        json.append(",\"corruptBlocks\":").append(corruptBlocks.sum());
+        json.append(",\"bytesDeduplicated\":").append(bytesDeduplicated.sum());
+        for (Map.Entry<String, Histogram> entry : getHistograms().entrySet()) {
+            Histogram histogram = entry.getValue();
+            json.append(",\"").append(entry.getKey()).append("Micros\":{");
+            json.append("\"count\":").append(histogram.getCount());
+            json.append(",\"mean\":").append(histogram.getMean() / 1000);
+            json.append(",\"p50\":").append(histogram.getPercentile(0.5) / 1000);
+            json.append(",\"p90\":").append(histogram.getPercentile(0.9) / 1000);
+            json.append(",\"p99\":").append(histogram.getPercentile(0.99) / 1000);
+            json.append(",\"max\":").append(histogram.getMax() / 1000);
+            json.append('}');
+        }
+        json.append('}');
+        return json.toString();
+    }
+
+    private static String escape(String value) {
+        StringBuilder escaped = new StringBuilder();
+        for (char c : value.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                escaped.append('\\').append(c);
+            } else if (c < ' ') {
+                escaped.append(String.format("\\u%04x", (int) c));
+            } else {
+                escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+}
@@ -0,0 +1,56 @@
+package idcdm;
+
+import java.util.Map;
+
+/**
+ * The JMX view of the Metrics of a DownloadEngine, registered as "IdcDm:type=Metrics,name=engine-N".
+ * Latencies are in microseconds.
+ */
+public interface MetricsMXBean {
+    long getBytesReceived();
+
+    long getBytesWritten();
+
+    /**
+     * @return the Range requests sent, a multi-range request counting once
+     */
+    long getRequests();
+
+    /**
+     * @return the multi-range requests the server did not answer with multipart/byteranges
+     */
+    long getMultiRangeFallbacks();
+
+    /**
+     * @return the times a ConnectionController changed the number of connections of a download
+     */
+    long getConnectionLimitChanges();
+
+    long getRetries();
+
+    long getStragglersReplaced();
+
+    long getCorruptBlocks();
+
+    long getBytesDeduplicated();
+
+    long getQueuedChunks();
+
+    int getActiveConnections();
+
+    /**
+     * @return the median of every latency histogram, by name
+     */
+    Map<String, Long> getP50Micros();
+
+    /**
+     * @return the 99th percentile of every latency histogram, by name
+     */
+    Map<String, Long> getP99Micros();
+
+    /**
+     * @return everything above and the bytes received by every connection as a single JSON object, the format of
+     * the --metrics dump without its rates, which are measured between two of its lines
+     */
+    String getSnapshot();
+}
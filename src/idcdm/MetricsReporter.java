@@ -0,0 +1,76 @@
+package idcdm;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Appends a Metrics snapshot to a file every intervalMillis, one JSON object per line, and a last one when
+ * stopped. The file may be tailed while downloading, or loaded afterwards to find the bottleneck of a run.
+ * Every line has the download rates since the previous one, of the engine and of every connection.
+ */
+class MetricsReporter implements Runnable {
+    private static final Logger LOGGER = Logger.getLogger("IdcDm.MetricsReporter");
+
+    private final Metrics metrics;
+    private final String filename;
+    private final long intervalMillis;
+    private volatile boolean stopped;
+    // previous sample, to compute the rates
+    private long lastSampleNanos = System.nanoTime();
+    private long lastBytesReceived;
+    private Map<HTTPRangeGetter, Long> lastConnectionBytes = new IdentityHashMap<>();
+
+    MetricsReporter(Metrics metrics, String filename, long intervalMillis) {
+        this.metrics = metrics;
+        this.filename = filename;
+        this.intervalMillis = intervalMillis;
+    }
+
+    void stop() {
+        stopped = true;
+    }
+
+    @Override
+    public void run() {
+        try (PrintWriter out = new PrintWriter(new FileOutputStream(filename, true))) {
+            while (!stopped) {
+                try {
+                    Thread.sleep(intervalMillis);
+                } catch (InterruptedException e) {
+                    // stopping, write the last snapshot
+                }
+                out.println(sample());
+                out.flush();
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "cannot write the metrics to " + filename, e);
+        }
+    }
+
+    /**
+     * @return a snapshot with the rates since the previous one
+     */
+    private String sample() {
+        long now = System.nanoTime();
+        double seconds = Math.max(now - lastSampleNanos, 1) / 1e9;
+        lastSampleNanos = now;
+        long received = metrics.getBytesReceived();
+        long bytesPerSecond = (long) ((received - lastBytesReceived) / seconds);
+        lastBytesReceived = received;
+        Map<HTTPRangeGetter, Long> connectionBytes = new IdentityHashMap<>();
+        Map<HTTPRangeGetter, Long> connectionRates = new IdentityHashMap<>();
+        for (HTTPRangeGetter getter : metrics.getConnections()) {
+            long bytes = getter.getBytesReceived();
+            Long last = lastConnectionBytes.get(getter);
+            connectionRates.put(getter, (long) ((bytes - (last == null ? 0 : last)) / seconds));
+            connectionBytes.put(getter, bytes);
+        }
+        lastConnectionBytes = connectionBytes;
+        return metrics.getSnapshot(bytesPerSecond, connectionRates);
+    }
+}
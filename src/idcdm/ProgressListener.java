@@ -0,0 +1,10 @@
+package idcdm;
+
+/**
+ * Told about the progress of a download every time a range is committed to its metadata, and once when it starts
+ * with what was already downloaded. It is called on the download's writer threads, one call at a time, and must
+ * return quickly.
+ */
+public interface ProgressListener {
+    void progress(long bytesDownloaded, long fileSize);
+}
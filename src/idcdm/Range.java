@@ -1,4 +1,4 @@
-
+package idcdm;
 
 /**
  * Describes a simple range, with a start, an end, and a length
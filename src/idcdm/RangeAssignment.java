@@ -0,0 +1,88 @@
+package idcdm;
+
+/**
+ * A range handed by the RangeScheduler to a single HTTPRangeGetter.
+ *
+ * The worker claims the bytes it is about to read one chunk at a time, while the scheduler may concurrently
+ * shrink the end of the assignment to give its tail to an idle worker. Claimed bytes are never given away, unless
+ * the worker fails and gives them back with unclaim().
+ */
+class RangeAssignment {
+    private final long start;
+    private long position;
+    private long end;
+
+    RangeAssignment(Range range) {
+        this.start = range.getStart();
+        this.position = range.getStart();
+        this.end = range.getEnd();
+    }
+
+    long getStart() {
+        return start;
+    }
+
+    /**
+     * The range from the assigned start to the current end, which moves down when the tail is stolen. Used for the
+     * HTTP Range header.
+     */
+    Range getRange() {
+        return new Range(start, getEnd());
+    }
+
+    synchronized long getEnd() {
+        return end;
+    }
+
+    synchronized long getRemaining() {
+        return end - position + 1;
+    }
+
+    /**
+     * Claim up to maxBytes bytes from the current position.
+     *
+     * @return the number of bytes claimed, 0 when the assignment is done
+     */
+    synchronized int claim(int maxBytes) {
+        int claimed = (int) Math.max(0, Math.min(maxBytes, end - position + 1));
+        position += claimed;
+        return claimed;
+    }
+
+    /**
+     * Give away the upper half of the unclaimed bytes.
+     *
+     * @return the stolen range, or null if fewer than 2 * minSize bytes are left
+     */
+    synchronized Range split(long minSize) {
+        long remaining = end - position + 1;
+        if (remaining < 2 * minSize) {
+            return null;
+        }
+        long middle = position + remaining / 2;
+        Range stolen = new Range(middle, end);
+        end = middle - 1;
+        return stolen;
+    }
+
+    /**
+     * Give back the claimed bytes from offset on, after the read of the chunk starting at offset failed.
+     */
+    synchronized void unclaim(long offset) {
+        position = Math.min(position, offset);
+    }
+
+    /**
+     * Stop the assignment, returning the bytes which were not claimed.
+     *
+     * @return the range from the position to the end, or null if everything was claimed
+     */
+    synchronized Range abandon() {
+        if (position > end) {
+            return null;
+        }
+        Range rest = new Range(position, end);
+        end = position - 1;
+        return rest;
+    }
+}
@@ -0,0 +1,213 @@
+package idcdm;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Hands missing ranges of a file to the HTTPRangeGetters on demand.
+ *
+ * Unassigned ranges are kept sorted by their start. A worker asking for work gets a slice of the first missing
+ * range, sized so that all workers get a fair share of what is left. When nothing is left unassigned, the worker
+ * steals the upper half of the largest range still in flight, so every connection stays busy until the last byte.
+ * A worker whose request failed, or was cancelled for being too slow, puts what it did not read back.
+ *
+ * When the file is streamed, the scheduler is given the reader's position and a reorder window: nothing past
+ * position + window is handed out, slices are sized by the window rather than by what is left of the file, and
+ * stealing splits the in-flight range nearest the reader, so the connections download just ahead of the reader
+ * instead of spreading over the whole file. A worker with nothing to do inside the window waits in awaitWork()
+ * until the reader moves on.
+ */
+class RangeScheduler {
+    static final long MIN_SPLIT_SIZE = 256 * 1024;
+
+    private final TreeMap<Long, Range> missing = new TreeMap<>();
+    private final List<RangeAssignment> active = new ArrayList<>();
+    private final int numberOfWorkers;
+    private final long minSplitSize;
+    private long unassignedBytes;
+    // 0 when the file is not streamed
+    private long window;
+    private long readPosition;
+    private boolean closed;
+
+    RangeScheduler(List<Range> missingRanges, int numberOfWorkers) {
+        this(missingRanges, numberOfWorkers, MIN_SPLIT_SIZE);
+    }
+
+    RangeScheduler(List<Range> missingRanges, int numberOfWorkers, long minSplitSize) {
+        this.numberOfWorkers = numberOfWorkers;
+        this.minSplitSize = minSplitSize;
+        for (Range range : missingRanges) {
+            missing.put(range.getStart(), range);
+            unassignedBytes += range.getLength();
+        }
+    }
+
+    /**
+     * @return the next range to download, or null if the whole file is assigned (or what is not is past the window)
+     *         and nothing is worth stealing
+     */
+    synchronized RangeAssignment next() {
+        Map.Entry<Long, Range> first = missing.firstEntry();
+        Range range;
+        if (first != null && first.getKey() < getWindowEnd()) {
+            missing.pollFirstEntry();
+            range = first.getValue();
+            long share = Math.max(minSplitSize, unassignedBytes / numberOfWorkers);
+            if (window > 0) {
+                share = Math.min(share, Math.max(minSplitSize, window / numberOfWorkers));
+                share = Math.min(share, getWindowEnd() - range.getStart());
+            }
+            if (range.getLength() > share) {
+                Range rest = new Range(range.getStart() + share, range.getEnd());
+                missing.put(rest.getStart(), rest);
+                range = new Range(range.getStart(), rest.getStart() - 1);
+            }
+            unassignedBytes -= range.getLength();
+        } else {
+            range = steal();
+            if (range == null) {
+                return null;
+            }
+        }
+        RangeAssignment assignment = new RangeAssignment(range);
+        active.add(assignment);
+        return assignment;
+    }
+
+    /**
+     * Take a run of up to maxRanges unassigned ranges which are each too small to be split, to be fetched together
+     * in a single multi-range request.
+     *
+     * @return the assigned ranges, empty if the first unassigned range is not small
+     */
+    synchronized List<RangeAssignment> nextSmall(int maxRanges) {
+        List<RangeAssignment> batch = new ArrayList<>();
+        Map.Entry<Long, Range> first;
+        while (batch.size() < maxRanges && (first = missing.firstEntry()) != null
+                && first.getValue().getLength() <= minSplitSize && first.getKey() < getWindowEnd()) {
+            missing.pollFirstEntry();
+            unassignedBytes -= first.getValue().getLength();
+            RangeAssignment assignment = new RangeAssignment(first.getValue());
+            active.add(assignment);
+            batch.add(assignment);
+        }
+        return batch;
+    }
+
+    private Range steal() {
+        if (window > 0) {
+            // help the range the reader is waiting for first
+            RangeAssignment nearest = null;
+            for (RangeAssignment assignment : active) {
+                if (assignment.getRemaining() >= 2 * minSplitSize
+                        && (nearest == null || assignment.getStart() < nearest.getStart())) {
+                    nearest = assignment;
+                }
+            }
+            return nearest == null ? null : nearest.split(minSplitSize);
+        }
+        RangeAssignment largest = null;
+        for (RangeAssignment assignment : active) {
+            if (largest == null || assignment.getRemaining() > largest.getRemaining()) {
+                largest = assignment;
+            }
+        }
+        return largest == null ? null : largest.split(minSplitSize);
+    }
+
+    /**
+     * @return true if every range was assigned; when next() returns null while some are not, they are past the window
+     */
+    synchronized boolean isExhausted() {
+        return missing.isEmpty();
+    }
+
+    /**
+     * Block while everything left is past the reorder window and nothing in flight is worth stealing, without
+     * holding a connection.
+     *
+     * @return false if the scheduler was closed
+     */
+    synchronized boolean awaitWork() throws InterruptedIOException {
+        while (!closed && !missing.isEmpty() && missing.firstKey() >= getWindowEnd() && !canSteal()) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("interrupted while waiting for the reader");
+            }
+        }
+        return !closed;
+    }
+
+    private boolean canSteal() {
+        for (RangeAssignment assignment : active) {
+            if (assignment.getRemaining() >= 2 * minSplitSize) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private long getWindowEnd() {
+        return window > 0 ? readPosition + window : Long.MAX_VALUE;
+    }
+
+    /**
+     * Stream the file: hand out nothing past window bytes after the reader's position.
+     */
+    synchronized void setWindow(long window) {
+        this.window = window;
+        notifyAll();
+    }
+
+    /**
+     * Move the reorder window to the reader's position.
+     */
+    synchronized void advance(long position) {
+        if (position > readPosition) {
+            readPosition = position;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Add a range to download again, e.g. a corrupt block a reader is waiting for.
+     */
+    synchronized void add(Range range) {
+        if (missing.containsKey(range.getStart())) {
+            return;
+        }
+        missing.put(range.getStart(), range);
+        unassignedBytes += range.getLength();
+        notifyAll();
+    }
+
+    /**
+     * Wake the workers waiting for work and let them stop, e.g. because the download was cancelled.
+     */
+    synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    synchronized void done(RangeAssignment assignment) {
+        active.remove(assignment);
+    }
+
+    /**
+     * Take back what was not read of the assignment, to be handed to the next worker asking for work.
+     */
+    synchronized void requeue(RangeAssignment assignment) {
+        active.remove(assignment);
+        Range rest = assignment.abandon();
+        if (rest != null) {
+            missing.put(rest.getStart(), rest);
+            unassignedBytes += rest.getLength();
+            notifyAll();
+        }
+    }
+}
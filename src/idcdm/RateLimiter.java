@@ -0,0 +1,49 @@
+package idcdm;
+
+/**
+ * A token bucket based rate-limiter, for buckets which do not refill themselves.
+ *
+ * This class implements a "soft" rate limiter by adding maxBytesPerSecond sumTokens to the bucket every second,
+ * or a "hard" rate limiter by resetting the bucket to maxBytesPerSecond sumTokens every second.
+ * The refill is spread over TICK_MILLIS ticks, so the traffic does not arrive in one second bursts.
+ */
+public class RateLimiter implements Runnable {
+    static final long TICK_MILLIS = 10;
+
+    enum Mode { SOFT, HARD }
+
+    private final TokenBucket tokenBucket;
+    private volatile Long maxBytesPerSecond;
+    private final Mode mode;
+
+    RateLimiter(TokenBucket tokenBucket, Long maxBytesPerSecond) {
+        this(tokenBucket, maxBytesPerSecond, Mode.SOFT);
+    }
+
+    RateLimiter(TokenBucket tokenBucket, Long maxBytesPerSecond, Mode mode) {
+        this.tokenBucket = tokenBucket;
+        this.maxBytesPerSecond = maxBytesPerSecond;
+        this.mode = mode;
+    }
+
+    void setMaxBytesPerSecond(long maxBytesPerSecond) {
+        this.maxBytesPerSecond = maxBytesPerSecond;
+    }
+
+    @Override
+    public void run() {
+        while (!tokenBucket.terminated()) {
+            long tokensPerTick = Math.max(maxBytesPerSecond * TICK_MILLIS / 1000, 1);
+            if (mode == Mode.SOFT) {
+                tokenBucket.add(tokensPerTick);
+            } else {
+                tokenBucket.set(tokensPerTick);
+            }
+            try {
+                Thread.sleep(TICK_MILLIS);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package idcdm;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * The size and validators (ETag, Last-Modified) of a remote file, as found by a HEAD request.
+ *
+ * On resume the validators saved with the metadata are sent back in a conditional request: a 304 means the file
+ * did not change and nothing more is asked. A server which ignores the conditions answers with the current
+ * validators, which are compared with the saved ones, so a changed file is found before any byte is downloaded
+ * into the old one.
+ */
+class RemoteFile {
+    private static final int TIMEOUT = 8000;
+
+    final long size;
+    final String etag;
+    final String lastModified;
+
+    RemoteFile(long size, String etag, String lastModified) {
+        this.size = size;
+        this.etag = etag;
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * @return true if other is the same version of the file, as far as the validators both have can tell
+     */
+    boolean matches(RemoteFile other) {
+        if (size != other.size) {
+            return false;
+        }
+        if (etag != null && other.etag != null) {
+            return etag.equals(other.etag);
+        }
+        if (lastModified != null && other.lastModified != null) {
+            return lastModified.equals(other.lastModified);
+        }
+        return true;
+    }
+
+    /**
+     * Ask the server for the file's size and validators, conditionally on previous when it is known.
+     *
+     * @param previous the saved version of the file, or null
+     * @return previous if the server answered 304 Not Modified, the current version otherwise
+     */
+    static RemoteFile probe(String fileUrl, RemoteFile previous) throws IOException {
+        HttpURLConnection connection = open(fileUrl, "HEAD");
+        if (previous != null && previous.etag != null) {
+            connection.setRequestProperty("If-None-Match", previous.etag);
+        } else if (previous != null && previous.lastModified != null) {
+            connection.setRequestProperty("If-Modified-Since", previous.lastModified);
+        }
+        try {
+            int responseCode = connection.getResponseCode();
+            if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                return previous;
+            }
+            long size = parseLength(connection.getHeaderField("Content-Length"));
+            if (responseCode < 400 && size >= 0) {
+                return new RemoteFile(size, connection.getHeaderField("ETag"),
+                        connection.getHeaderField("Last-Modified"));
+            }
+        } finally {
+            connection.disconnect();
+        }
+        // some servers refuse HEAD or leave the length out, ask for the first byte instead
+        connection = open(fileUrl, "GET");
+        connection.setRequestProperty("Range", "bytes=0-0");
+        try {
+            int responseCode = connection.getResponseCode();
+            long size = -1;
+            if (responseCode == HttpURLConnection.HTTP_PARTIAL) {
+                String contentRange = connection.getHeaderField("Content-Range");
+                if (contentRange != null) {
+                    size = parseLength(contentRange.substring(contentRange.lastIndexOf('/') + 1));
+                }
+            } else if (responseCode == HttpURLConnection.HTTP_OK) {
+                size = parseLength(connection.getHeaderField("Content-Length"));
+            }
+            if (size < 0) {
+                throw new IOException("could not get the size of " + fileUrl + ", response code " + responseCode);
+            }
+            return new RemoteFile(size, connection.getHeaderField("ETag"), connection.getHeaderField("Last-Modified"));
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private static HttpURLConnection open(String fileUrl, String method) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(fileUrl).openConnection();
+        connection.setRequestMethod(method);
+        connection.setConnectTimeout(TIMEOUT);
+        connection.setReadTimeout(TIMEOUT);
+        return connection;
+    }
+
+    private static long parseLength(String value) {
+        if (value == null || value.equals("*")) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package idcdm;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.logging.Logger;
+
+/**
+ * The sources (the URL and its mirrors) a file is downloaded from, and which one each request goes to.
+ *
+ * Every request picks a source at random with a probability proportional to the source's measured throughput per
+ * request, so the connections spread over the sources by how fast they serve, and a source capping each client
+ * gets fewer requests as its per-request throughput falls. A source with no measurement yet is weighted like the
+ * fastest one, so it gets tried. A source is dropped after MAX_FAILURES failed requests in a row, or when it is
+ * DROP_RATIO times slower than the fastest; the last source is never dropped.
+ * Every source has the ConnectionBudget of its host, which the getters hold during each request to it.
+ */
+class SourceSelector {
+    static final int MAX_FAILURES = 3;
+    static final double DROP_RATIO = 0.1;
+    // requests measured before a source may be dropped for being slow
+    static final int MIN_SAMPLES = 4;
+    private static final double SMOOTHING = 0.3;
+    private static final Logger LOGGER = Logger.getLogger("IdcDm.SourceSelector");
+
+    static class Source {
+        final String url;
+        // the requests in flight to the source's host, null for no limit
+        final ConnectionBudget budget;
+        private double bytesPerSecond;
+        private int samples;
+        private int failures;
+        private boolean dropped;
+
+        Source(String url, ConnectionBudget budget) {
+            this.url = url;
+            this.budget = budget;
+        }
+    }
+
+    private final List<Source> sources;
+
+    SourceSelector(List<Source> sources) {
+        this.sources = new ArrayList<>(sources);
+    }
+
+    synchronized Source pick() {
+        double fastest = 1;
+        for (Source source : sources) {
+            if (!source.dropped && source.samples > 0) {
+                fastest = Math.max(fastest, source.bytesPerSecond);
+            }
+        }
+        double total = 0;
+        for (Source source : sources) {
+            total += getWeight(source, fastest);
+        }
+        double target = ThreadLocalRandom.current().nextDouble() * total;
+        Source picked = null;
+        for (Source source : sources) {
+            if (source.dropped) {
+                continue;
+            }
+            picked = source;
+            target -= getWeight(source, fastest);
+            if (target < 0) {
+                break;
+            }
+        }
+        return picked;
+    }
+
+    private static double getWeight(Source source, double fastest) {
+        if (source.dropped) {
+            return 0;
+        }
+        return source.samples > 0 ? Math.max(source.bytesPerSecond, 1) : fastest;
+    }
+
+    /**
+     * Record a request to source which read bytes in nanos, possibly cut short by a cancel.
+     */
+    synchronized void completed(Source source, long bytes, long nanos) {
+        double rate = bytes * 1e9 / Math.max(nanos, 1);
+        source.bytesPerSecond = source.samples == 0 ? rate
+                : SMOOTHING * rate + (1 - SMOOTHING) * source.bytesPerSecond;
+        source.samples++;
+        source.failures = 0;
+        double fastest = 0;
+        for (Source other : sources) {
+            if (!other.dropped && other.samples >= MIN_SAMPLES) {
+                fastest = Math.max(fastest, other.bytesPerSecond);
+            }
+        }
+        for (Source other : sources) {
+            if (!other.dropped && other.samples >= MIN_SAMPLES && other.bytesPerSecond < fastest * DROP_RATIO) {
+                drop(other, String.format("%.0f Bps against %.0f Bps", other.bytesPerSecond, fastest));
+            }
+        }
+    }
+
+    synchronized void failed(Source source) {
+        source.failures++;
+        if (source.failures >= MAX_FAILURES) {
+            drop(source, source.failures + " failed requests in a row");
+        }
+    }
+
+    private void drop(Source source, String reason) {
+        if (source.dropped || getActiveSources() <= 1) {
+            return;
+        }
+        source.dropped = true;
+        LOGGER.warning("dropping source " + source.url + ": " + reason);
+    }
+
+    synchronized int getActiveSources() {
+        int active = 0;
+        for (Source source : sources) {
+            if (!source.dropped) {
+                active++;
+            }
+        }
+        return active;
+    }
+}
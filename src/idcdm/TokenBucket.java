@@ -0,0 +1,220 @@
+package idcdm;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A Token Bucket (https://en.wikipedia.org/wiki/Token_bucket)
+ *
+ * This thread-safe bucket supports the following methods:
+ *
+ * - take(n): remove n sumTokens from the bucket (blocks until n sumTokens are available and taken)
+ * - set(n): set the bucket to contain n sumTokens (to allow "hard" rate limiting)
+ * - add(n): add n sumTokens to the bucket (to allow "soft" rate limiting)
+ * - terminate(): mark the bucket as terminated (used to communicate between threads)
+ * - terminated(): return true if the bucket is terminated, false otherwise
+ *
+ * The bucket never holds more than its capacity (the burst size). A bucket created with a rate refills itself
+ * lazily from the elapsed time on every access, so it needs no refill thread; a bucket created without a rate is
+ * refilled by a RateLimiter through add() or set(). The rate and capacity may be changed at any time with setRate().
+ * The head of the line of such a bucket takes whatever the bucket holds rather than a whole part, since a hard
+ * refill may reset it to less than a part every tick.
+ *
+ * A bucket may also be unlimited: take() then returns at once without locking, until setUnlimited(false).
+ *
+ * Waiting threads park instead of spinning and are served strictly in FIFO order, one part of at most capacity
+ * tokens at a time, so connections taking equal amounts get equal shares and tokens a slow connection does not ask
+ * for go to the others. A bucket may have a parent: take() then takes from the bucket and then from its parent,
+ * which allows a per-connection limit under a global one.
+ */
+class TokenBucket {
+    private final ReentrantLock lock = new ReentrantLock(true);
+    private final Condition available = lock.newCondition();
+    private final TokenBucket parent;
+    private long capacity;
+    private long ratePerSecond;
+    private long tokens;
+    private long lastRefill;
+    private long nextTicket;
+    private long nowServing;
+    private volatile boolean terminated;
+    private volatile boolean unlimited;
+
+    /**
+     * An unlimited bucket, which limits nothing until it is given a rate with setRate() and setUnlimited(false).
+     */
+    TokenBucket() {
+        this(0, 1);
+        this.unlimited = true;
+    }
+
+    /**
+     * A bucket refilled only through add() and set().
+     */
+    TokenBucket(long tokens) {
+        this(0, tokens);
+    }
+
+    /**
+     * A bucket which refills itself at ratePerSecond tokens per second, up to capacity tokens. It starts full.
+     */
+    TokenBucket(long ratePerSecond, long capacity) {
+        this(ratePerSecond, capacity, null);
+    }
+
+    /**
+     * A self refilling bucket whose takes are also taken from parent, if it is not null.
+     */
+    TokenBucket(long ratePerSecond, long capacity, TokenBucket parent) {
+        this.ratePerSecond = ratePerSecond;
+        this.capacity = capacity;
+        this.tokens = capacity;
+        this.parent = parent;
+        this.terminated = false;
+        this.lastRefill = System.nanoTime();
+    }
+
+    /**
+     * Take tokens, parking until they are available. Requests bigger than the capacity are served in parts.
+     * Returns early if the bucket is terminated or the thread is interrupted.
+     */
+    void take(long tokens) {
+        if (!unlimited) {
+            takeLocal(tokens);
+        }
+        if (parent != null) {
+            parent.take(tokens);
+        }
+    }
+
+    private void takeLocal(long tokens) {
+        lock.lock();
+        try {
+            while (tokens > 0 && !terminated && !unlimited) {
+                long ticket = nextTicket++;
+                // only the head of the line waits for tokens, the others wait for their turn
+                while (ticket != nowServing) {
+                    available.awaitUninterruptibly();
+                }
+                try {
+                    long part = Math.min(tokens, capacity);
+                    refill();
+                    while (this.tokens < part) { //not enough available tokens in the bucket
+                        if (terminated || unlimited) {
+                            return;
+                        }
+                        if (ratePerSecond <= 0 && this.tokens > 0) {
+                            // a hard refill resets the bucket to less than a part every tick, take what it gives
+                            part = this.tokens;
+                            break;
+                        }
+                        if (ratePerSecond > 0) {
+                            available.awaitNanos((long) ((part - this.tokens) * (1e9 / ratePerSecond)) + 1);
+                        } else {
+                            available.await();
+                        }
+                        refill();
+                        part = Math.min(tokens, capacity);
+                    }
+                    this.tokens -= part;
+                    tokens -= part;
+                } finally {
+                    nowServing++;
+                    available.signalAll();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Change the refill rate and the capacity. Tokens already in the bucket beyond the new capacity are dropped.
+     */
+    void setRate(long ratePerSecond, long capacity) {
+        lock.lock();
+        try {
+            refill();
+            this.ratePerSecond = ratePerSecond;
+            this.capacity = capacity;
+            this.tokens = Math.min(tokens, capacity);
+            this.lastRefill = System.nanoTime();
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void refill() {
+        if (ratePerSecond <= 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        long newTokens = (long) ((now - lastRefill) * (ratePerSecond / 1e9));
+        if (newTokens <= 0) {
+            return;
+        }
+        // compared this way round so a very high rate cannot overflow
+        if (newTokens >= capacity - tokens) {
+            tokens = capacity;
+            lastRefill = now;
+        } else {
+            tokens += newTokens;
+            lastRefill += (long) (newTokens * (1e9 / ratePerSecond));
+        }
+    }
+
+    void terminate() {
+        lock.lock();
+        try {
+            terminated = true;
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean terminated() {
+        return terminated;
+    }
+
+    /**
+     * Let every take through at once, or limit the takes again. The threads waiting for tokens return.
+     */
+    void setUnlimited(boolean unlimited) {
+        lock.lock();
+        try {
+            this.unlimited = unlimited;
+            this.lastRefill = System.nanoTime();
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean isUnlimited() {
+        return unlimited;
+    }
+
+    void set(long tokens) {
+        lock.lock();
+        try {
+            this.tokens = Math.min(tokens, capacity);
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void add(long tokens) {
+        lock.lock();
+        try {
+            this.tokens = Math.min(this.tokens + tokens, capacity);
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
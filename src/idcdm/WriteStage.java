@@ -0,0 +1,66 @@
+package idcdm;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * The write side of a download: one or more FileWriters, each with its own queue and channel.
+ *
+ * The file is divided into REGION_SIZE regions which are dealt round-robin to the writers, and every chunk goes to
+ * the writer owning the region it starts in. A writer therefore sees the runs of adjacent chunks of its regions and
+ * can coalesce them, while the writers together scale the disk throughput with the cores. Every writer commits its
+ * own ranges to the shared DownloadableMetadata after forcing them.
+ */
+class WriteStage {
+    static final long REGION_SIZE = 16 * 1024 * 1024;
+
+    private final List<BlockingQueue<Chunk>> queues = new ArrayList<>();
+    private final List<Thread> threads = new ArrayList<>();
+    private final Metrics metrics;
+
+    WriteStage(DownloadableMetadata downloadableMetadata, ChunkPool chunkPool, DownloadConfig config,
+               Metrics metrics) {
+        this.metrics = metrics;
+        for (int i = 0; i < config.writerThreads; i++) {
+            // the pool bounds the number of chunks in flight, so a queue never blocks a getter
+            BlockingQueue<Chunk> chunkQueue = new ArrayBlockingQueue<Chunk>(chunkPool.getPoolSize() + 1);
+            FileWriter writer = new FileWriter(downloadableMetadata, chunkQueue, chunkPool,
+                    config.syncBytes, config.syncIntervalMillis, metrics);
+            queues.add(chunkQueue);
+            threads.add(EngineThreads.newThread(writer, config.virtualThreads));
+        }
+    }
+
+    void start() {
+        for (Thread thread : threads) {
+            thread.start();
+        }
+    }
+
+    void put(Chunk chunk) throws InterruptedIOException {
+        int writer = (int) ((chunk.getOffset() / REGION_SIZE) % queues.size());
+        chunk.setQueuedAt(System.nanoTime());
+        metrics.queuedChunks.increment();
+        try {
+            queues.get(writer).put(chunk);
+        } catch (InterruptedException e) {
+            metrics.queuedChunks.decrement();
+            throw new InterruptedIOException("interrupted while queueing a chunk");
+        }
+    }
+
+    /**
+     * Send the finish marker to every writer and wait until they have committed everything.
+     */
+    void finish() throws InterruptedException {
+        for (BlockingQueue<Chunk> queue : queues) {
+            queue.put(FileWriter.FINISH_MARKER);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package idcdm;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import org.junit.jupiter.api.Test;
+
+class DownloadConfigTest {
+    private static void assertRejected(String option) {
+        try {
+            new DownloadConfig().parseOption(option);
+            fail("accepted " + option);
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    void parsesSizes() {
+        assertEquals(512, DownloadConfig.parseSize("512"));
+        assertEquals(16 * 1024, DownloadConfig.parseSize("16K"));
+        assertEquals(64L * 1024 * 1024, DownloadConfig.parseSize("64m"));
+        assertEquals(2L * 1024 * 1024 * 1024, DownloadConfig.parseSize("2G"));
+    }
+
+    @Test
+    void parsesOptions() {
+        DownloadConfig config = new DownloadConfig();
+        assertTrue(config.parseOption("--connections=auto:2-8"));
+        assertTrue(config.parseOption("--rate=10M"));
+        assertTrue(config.parseOption("--writers=4"));
+        assertFalse(config.parseOption("--no-such-option"));
+        assertTrue(config.autoConnections);
+        assertEquals(2, config.minConnections);
+        assertEquals(8, config.numberOfWorkers);
+        assertEquals(10L * 1024 * 1024, (long) config.maxBytesPerSecond);
+        assertEquals(4, config.writerThreads);
+    }
+
+    @Test
+    void rejectsValuesWhichWouldStallOrCrashTheEngine() {
+        assertRejected("--burst=0");
+        assertRejected("--read-size=0");
+        assertRejected("--chunk-size=-1");
+        assertRejected("--chunk-size=4G");
+        assertRejected("--adaptive=1M-64K");
+        assertRejected("--writers=0");
+        assertRejected("--parallel-files=0");
+        assertRejected("--verify-threads=0");
+        assertRejected("--connections=0");
+        assertRejected("--connections=auto:4-2");
+        assertRejected("--rate=0");
+    }
+}
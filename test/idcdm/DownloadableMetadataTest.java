@@ -0,0 +1,164 @@
+package idcdm;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class DownloadableMetadataTest {
+    private static final String URL = "http://localhost/metadata-test.bin";
+    private static final long FILE_SIZE = 1000;
+
+    @BeforeEach
+    @AfterEach
+    void deleteFiles() {
+        DownloadableMetadata.discard(URL);
+    }
+
+    private static DownloadableMetadata load() throws Exception {
+        return new DownloadableMetadata(URL, FILE_SIZE);
+    }
+
+    /**
+     * @return the completed ranges as "start-end" strings, which compare and print better than Ranges
+     */
+    private static List<String> completed(DownloadableMetadata metadata) {
+        List<String> ranges = new ArrayList<>();
+        for (Range range : metadata.getCompletedRanges()) {
+            ranges.add(range.getStart() + "-" + range.getEnd());
+        }
+        return ranges;
+    }
+
+    private static List<String> ranges(String... ranges) {
+        List<String> list = new ArrayList<>();
+        for (String range : ranges) {
+            list.add(range);
+        }
+        return list;
+    }
+
+    @Test
+    void mergesAdjacentAndOverlappingRanges() throws Exception {
+        DownloadableMetadata metadata = load();
+        metadata.addRange(new Range(0L, 9L));
+        metadata.addRange(new Range(20L, 29L));
+        assertEquals(ranges("0-9", "20-29"), completed(metadata));
+        metadata.addRange(new Range(10L, 19L));
+        assertEquals(ranges("0-29"), completed(metadata));
+        metadata.addRange(new Range(25L, 39L));
+        assertEquals(ranges("0-39"), completed(metadata));
+        assertEquals(40, metadata.bytesRead);
+    }
+
+    @Test
+    void rangeSpanningSeveralRangesCountsOnlyNewBytes() throws Exception {
+        DownloadableMetadata metadata = load();
+        metadata.addRange(new Range(10L, 19L));
+        metadata.addRange(new Range(30L, 39L));
+        metadata.addRange(new Range(0L, 49L));
+        assertEquals(ranges("0-49"), completed(metadata));
+        assertEquals(50, metadata.bytesRead);
+        metadata.addRange(new Range(5L, 45L));
+        assertEquals(50, metadata.bytesRead);
+    }
+
+    @Test
+    void missingRangesAreTheGaps() throws Exception {
+        DownloadableMetadata metadata = load();
+        metadata.addRange(new Range(100L, 199L));
+        metadata.addRange(new Range(500L, 999L));
+        List<String> missing = new ArrayList<>();
+        for (Range range : metadata.getMissingRanges()) {
+            missing.add(range.getStart() + "-" + range.getEnd());
+        }
+        assertEquals(ranges("0-99", "200-499"), missing);
+        Range first = metadata.getMissingRange();
+        Range second = metadata.getMissingRange();
+        assertEquals(0L, (long) first.getStart());
+        assertEquals(200L, (long) second.getStart());
+        assertNull(metadata.getMissingRange());
+    }
+
+    @Test
+    void removeRangeSplitsAndTrimsRanges() throws Exception {
+        DownloadableMetadata metadata = load();
+        metadata.addRange(new Range(0L, 99L));
+        metadata.addRange(new Range(200L, 299L));
+        metadata.removeRange(new Range(10L, 19L));
+        assertEquals(ranges("0-9", "20-99", "200-299"), completed(metadata));
+        metadata.removeRange(new Range(50L, 249L));
+        assertEquals(ranges("0-9", "20-49", "250-299"), completed(metadata));
+        assertEquals(10 + 30 + 50, metadata.bytesRead);
+        assertFalse(metadata.isCompleted(0, 20));
+        assertTrue(metadata.isCompleted(20, 49));
+    }
+
+    @Test
+    void removedRangeStaysRemovedAfterReload() throws Exception {
+        DownloadableMetadata metadata = load();
+        metadata.addRange(new Range(0L, 99L));
+        metadata.sync();
+        metadata.removeRange(new Range(40L, 59L));
+        assertEquals(ranges("0-39", "60-99"), completed(load()));
+    }
+
+    @Test
+    void syncedRangesSurviveReload() throws Exception {
+        DownloadableMetadata metadata = load();
+        metadata.addRange(new Range(0L, 99L));
+        metadata.sync();
+        metadata.addRange(new Range(300L, 399L));
+        metadata.sync();
+        // not synced, so lost
+        metadata.addRange(new Range(500L, 599L));
+        DownloadableMetadata reloaded = load();
+        assertEquals(ranges("0-99", "300-399"), completed(reloaded));
+        assertEquals(200, reloaded.bytesRead);
+    }
+
+    @Test
+    void tornJournalTailIsIgnoredAndCutOff() throws Exception {
+        DownloadableMetadata metadata = load();
+        metadata.addRange(new Range(0L, 99L));
+        metadata.sync();
+        File journal = new File(metadata.getMetadataFilename() + ".journal");
+        long length = journal.length();
+        assertEquals(16, length);
+        // a crash in the middle of appending the next record
+        appendGarbage(journal, 7);
+
+        DownloadableMetadata reloaded = load();
+        assertEquals(ranges("0-99"), completed(reloaded));
+        assertEquals(length, journal.length());
+
+        // the next records are appended at a record boundary
+        reloaded.addRange(new Range(200L, 299L));
+        reloaded.sync();
+        assertEquals(ranges("0-99", "200-299"), completed(load()));
+    }
+
+    @Test
+    void savesTheVersionOfTheRemoteFile() throws Exception {
+        new DownloadableMetadata(URL, new RemoteFile(FILE_SIZE, "\"v1\"", null));
+        RemoteFile saved = DownloadableMetadata.loadRemoteFile(URL);
+        assertEquals(FILE_SIZE, saved.size);
+        assertEquals("\"v1\"", saved.etag);
+        assertNull(saved.lastModified);
+    }
+
+    private static void appendGarbage(File file, int bytes) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            out.write(new byte[bytes]);
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package idcdm;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+class HistogramTest {
+    // every value is known within an eighth
+    private static final double PRECISION = 0.125;
+
+    private static void assertClose(long expected, long actual) {
+        assertTrue(Math.abs(actual - expected) <= expected * PRECISION,
+                "expected about " + expected + " but was " + actual);
+    }
+
+    @Test
+    void emptyHistogram() {
+        Histogram histogram = new Histogram();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMean());
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.getPercentile(0.99));
+    }
+
+    @Test
+    void smallValuesAreExact() {
+        Histogram histogram = new Histogram();
+        for (long value = 0; value < 8; value++) {
+            histogram.record(value);
+        }
+        assertEquals(8, histogram.getCount());
+        assertEquals(3, histogram.getPercentile(0.5));
+        assertEquals(7, histogram.getPercentile(1));
+    }
+
+    @Test
+    void percentilesOfAUniformDistribution() {
+        Histogram histogram = new Histogram();
+        for (long value = 1; value <= 100000; value++) {
+            histogram.record(value * 1000);
+        }
+        assertEquals(100000, histogram.getCount());
+        assertEquals(100000L * 1000, histogram.getMax());
+        assertEquals(50000500, histogram.getMean());
+        assertClose(50000L * 1000, histogram.getPercentile(0.5));
+        assertClose(90000L * 1000, histogram.getPercentile(0.9));
+        assertClose(99000L * 1000, histogram.getPercentile(0.99));
+    }
+
+    @Test
+    void percentileNeverExceedsTheMaximum() {
+        Histogram histogram = new Histogram();
+        histogram.record(1000);
+        assertEquals(1000, histogram.getPercentile(0.5));
+        assertEquals(1000, histogram.getPercentile(1));
+    }
+
+    @Test
+    void extremeValues() {
+        Histogram histogram = new Histogram();
+        histogram.record(-5);
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(2, histogram.getCount());
+        assertEquals(0, histogram.getPercentile(0.5));
+        assertEquals(Long.MAX_VALUE, histogram.getPercentile(1));
+        assertEquals(Long.MAX_VALUE, histogram.getMax());
+    }
+
+    @Test
+    void concurrentRecordsAreAllCounted() throws Exception {
+        final Histogram histogram = new Histogram();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final long base = t * 1000000L;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (long i = 1; i <= 100000; i++) {
+                        histogram.record(base + i);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(400000, histogram.getCount());
+        assertEquals(3000000L + 100000, histogram.getMax());
+    }
+}
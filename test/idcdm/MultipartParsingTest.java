@@ -0,0 +1,75 @@
+package idcdm;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import org.junit.jupiter.api.Test;
+
+/**
+ * The pieces HTTPRangeGetter parses a multipart/byteranges response with.
+ */
+class MultipartParsingTest {
+    private static InputStream stream(String content) {
+        return new ByteArrayInputStream(content.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    @Test
+    void readsThePartHeaders() throws IOException {
+        InputStream in = stream("\r\n--BOUNDARY\r\nContent-Type: application/octet-stream\r\n"
+                + "Content-Range: bytes 100-199/1000\r\n\r\nDATA");
+        assertEquals("", HTTPRangeGetter.readLine(in));
+        assertEquals("--BOUNDARY", HTTPRangeGetter.readLine(in));
+        assertEquals("Content-Type: application/octet-stream", HTTPRangeGetter.readLine(in));
+        assertEquals("Content-Range: bytes 100-199/1000", HTTPRangeGetter.readLine(in));
+        assertEquals("", HTTPRangeGetter.readLine(in));
+        // the body is left in the stream
+        assertEquals('D', in.read());
+    }
+
+    @Test
+    void readLineAcceptsBareNewlinesAndAMissingLastNewline() throws IOException {
+        InputStream in = stream("--BOUNDARY\n--BOUNDARY--");
+        assertEquals("--BOUNDARY", HTTPRangeGetter.readLine(in));
+        assertEquals("--BOUNDARY--", HTTPRangeGetter.readLine(in));
+        assertNull(HTTPRangeGetter.readLine(in));
+    }
+
+    @Test
+    void findsTheBoundary() {
+        assertEquals("3d6b6a416f9b5", HTTPRangeGetter.getParameter(
+                "multipart/byteranges; boundary=3d6b6a416f9b5", "boundary"));
+        assertEquals("quoted boundary", HTTPRangeGetter.getParameter(
+                "multipart/byteranges;charset=x; boundary=\"quoted boundary\"", "boundary"));
+        assertNull(HTTPRangeGetter.getParameter("application/octet-stream", "boundary"));
+    }
+
+    @Test
+    void parsesContentRange() throws IOException {
+        Range range = HTTPRangeGetter.parseContentRange("bytes 100-199/1000");
+        assertEquals(100L, (long) range.getStart());
+        assertEquals(199L, (long) range.getEnd());
+        range = HTTPRangeGetter.parseContentRange("bytes 0-4294967296/*");
+        assertEquals(4294967296L, (long) range.getEnd());
+    }
+
+    @Test
+    void rejectsMalformedContentRange() {
+        assertMalformed("bytes */1000");
+        assertMalformed("100-199/1000");
+        assertMalformed("bytes 100-/1000");
+    }
+
+    private static void assertMalformed(String contentRange) {
+        try {
+            HTTPRangeGetter.parseContentRange(contentRange);
+            fail("parsed " + contentRange);
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
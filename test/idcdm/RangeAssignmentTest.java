@@ -0,0 +1,74 @@
+package idcdm;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import org.junit.jupiter.api.Test;
+
+class RangeAssignmentTest {
+    @Test
+    void claimStopsAtTheEnd() {
+        RangeAssignment assignment = new RangeAssignment(new Range(0L, 99L));
+        assertEquals(64, assignment.claim(64));
+        assertEquals(36, assignment.getRemaining());
+        assertEquals(36, assignment.claim(64));
+        assertEquals(0, assignment.claim(64));
+        assertEquals(0, assignment.getRemaining());
+    }
+
+    @Test
+    void splitGivesAwayTheUpperHalfOfTheUnclaimedBytes() {
+        RangeAssignment assignment = new RangeAssignment(new Range(0L, 99L));
+        assignment.claim(20);
+        Range stolen = assignment.split(10);
+        assertEquals(60L, (long) stolen.getStart());
+        assertEquals(99L, (long) stolen.getEnd());
+        assertEquals(59L, assignment.getEnd());
+        assertEquals(0L, (long) assignment.getRange().getStart());
+        assertEquals(59L, (long) assignment.getRange().getEnd());
+        // claims stop at the new end
+        assertEquals(40, assignment.claim(64));
+        assertEquals(0, assignment.claim(64));
+    }
+
+    @Test
+    void splitKeepsSmallAssignments() {
+        RangeAssignment assignment = new RangeAssignment(new Range(0L, 99L));
+        assignment.claim(81);
+        assertNull(assignment.split(10));
+        assertEquals(99L, assignment.getEnd());
+    }
+
+    @Test
+    void splitNeverGivesAwayClaimedBytes() {
+        RangeAssignment assignment = new RangeAssignment(new Range(0L, 99L));
+        assignment.claim(50);
+        Range stolen = assignment.split(1);
+        assertEquals(75L, (long) stolen.getStart());
+        assignment.claim(25);
+        assertNull(assignment.split(1));
+    }
+
+    @Test
+    void unclaimGivesBackAFailedChunk() {
+        RangeAssignment assignment = new RangeAssignment(new Range(100L, 199L));
+        assignment.claim(30);
+        assignment.claim(30);
+        assignment.unclaim(130);
+        assertEquals(70, assignment.getRemaining());
+        // a later offset does not move the position forward
+        assignment.unclaim(150);
+        assertEquals(70, assignment.getRemaining());
+    }
+
+    @Test
+    void abandonReturnsTheUnclaimedRest() {
+        RangeAssignment assignment = new RangeAssignment(new Range(0L, 99L));
+        assignment.claim(40);
+        Range rest = assignment.abandon();
+        assertEquals(40L, (long) rest.getStart());
+        assertEquals(99L, (long) rest.getEnd());
+        assertEquals(0, assignment.claim(10));
+        assertNull(assignment.abandon());
+    }
+}